@@ -0,0 +1,94 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Benchmarks for logging under load (several threads logging concurrently, like the
+ * MIDI sender and receiver threads during retrieval), with IO logs discarded
+ * by the log level (default) or recorded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+  /** log level */
+  @Param({"LOG_DEBUG", "LOG_IO"})
+  public ILogger.LogType level;
+  /** logger under test */
+  private final ILogger log = LogManager.getLogger();
+  /** typical Sysex message as logged by the MIDI code */
+  private final byte[] sysex = {
+      (byte)0xf0, 0x04, 0x17, 0x23, 0x0a, 0x00, 0x03, 0, 0, 0, 0, 0, 0, 0, 0x01, 0x02, (byte)0xf7 };
+  
+  /** set the log level */
+  @Setup(Level.Trial)
+  public void setLevel() {
+    LogManager.getLogManager().setLevel(level);
+  }
+  
+  /** discard the logs so that the log buffer does not grow across iterations */
+  @TearDown(Level.Iteration)
+  public void clearLogs() {
+    LogManager.getLogManager().clearLogs();
+  }
+  
+  /** log a message with several arguments */
+  @Benchmark
+  public void log() {
+    log.debug("Parameter ", "Fine Tune", " imported with value ", 42);
+  }
+  
+  /** log a hex dump of a Sysex message */
+  @Benchmark
+  public void logHex() {
+    log.iohex("MIDI in: ", sysex);
+  }
+}
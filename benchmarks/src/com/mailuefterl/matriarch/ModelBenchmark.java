@@ -0,0 +1,106 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mailuefterl.matriarch.parameter.IParameterValue;
+import com.mailuefterl.matriarch.parameter.Parameter;
+import com.mailuefterl.matriarch.parameter.ParameterGroup;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Benchmarks for parameter model lookups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelBenchmark {
+  /** controller with loaded parameter definitions */
+  private MatSwitchController ctl;
+  /** a parameter with a value range */
+  private Parameter rangeParam;
+  /** a parameter with value choices */
+  private Parameter choiceParam;
+  /** largest value of rangeParam */
+  private int rangeMax;
+  /** number (MIDI value) of the last choice of choiceParam */
+  private int lastChoice;
+  /** MIDI number of the last parameter (worst case for linear search) */
+  private byte lastMidiNumber;
+  
+  /** load the parameter definitions and pick parameters to benchmark */
+  @Setup
+  public void setup() {
+    ctl = new MatSwitchController();
+    final List<Parameter> params = ParameterGroup.findOrCreateGroup("ALL Parameters").getParameters();
+    for (final Parameter param: params) {
+      if (param.isRange() && (rangeParam == null)) {
+        rangeParam = param;
+        rangeMax = param.getRange().rangeMax;
+      } else if (!param.isRange() && ((choiceParam == null) || (param.getChoices().size() > choiceParam.getChoices().size()))) {
+        choiceParam = param;
+        lastChoice = param.getChoices().get(param.getChoices().size() - 1).getNumber();
+      }
+    }
+    lastMidiNumber = params.get(params.size() - 1).midiNumber;
+    LogManager.getLogManager().clearLogs();
+  }
+  
+  /** find a value of a range parameter */
+  @Benchmark
+  public IParameterValue findRangeValue() {
+    return rangeParam.findValue(rangeMax);
+  }
+  
+  /** find the last value of the choice parameter with the most choices */
+  @Benchmark
+  public IParameterValue findChoiceValue() {
+    return choiceParam.findValue(lastChoice);
+  }
+  
+  /** find the parameter with the given MIDI number */
+  @Benchmark
+  public Parameter findParameter() {
+    return ctl.findParameter(lastMidiNumber);
+  }
+}
@@ -0,0 +1,114 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Benchmarks for Sysex parsing and message creation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+  /** answer of a current firmware (with unitId) */
+  private final byte[] answer = {
+      (byte)0xf0, 0x04, 0x17, 0x23, 0x0a, 0x00, 0x03, 0, 0, 0, 0, 0, 0, 0, 0x01, 0x02, (byte)0xf7 };
+  /** answer of firmware 1.2.0 (without unitId) */
+  private final byte[] legacyAnswer = {
+      (byte)0xf0, 0x04, 0x17, 0x23, 0x0a, 0x00, 0x03, 0, 0, 0, 0, 0, 0, 0, 0x01, (byte)0xf7 };
+  /** Sysex of another manufacturer (rejected by the parser) */
+  private final byte[] foreignSysex = {
+      (byte)0xf0, 0x43, 0x10, 0x4c, 0x00, 0x00, 0x7e, 0x00, 0, 0, 0, 0, 0, 0, 0x00, 0x00, (byte)0xf7 };
+  /** MIDI handler (for message creation) */
+  private MatSwitchMidi midi;
+  /** parameter ID cycled through in message creation */
+  private byte paramId;
+  
+  /** create the MIDI handler (not connected to any interface) */
+  @Setup
+  public void setup() {
+    midi = new MatSwitchMidi(new MatSwitchController());
+    LogManager.getLogManager().clearLogs();
+  }
+  
+  /** parse a valid answer */
+  @Benchmark
+  public MatParameterAnswer parseAnswer() throws ParseException {
+    return new MatParameterAnswer(answer, answer.length);
+  }
+  
+  /** parse a valid answer without unitId */
+  @Benchmark
+  public MatParameterAnswer parseLegacyAnswer() throws ParseException {
+    return new MatParameterAnswer(legacyAnswer, legacyAnswer.length);
+  }
+  
+  /** reject a message that is not from Matriarch */
+  @Benchmark
+  public Object parseRejected() {
+    try {
+      return new MatParameterAnswer(foreignSysex, foreignSysex.length);
+    }
+    catch (final ParseException e) {
+      return e;
+    }
+  }
+  
+  /** create a store message */
+  @Benchmark
+  public MidiMessage createStoreParamRequest() {
+    paramId = (byte)((paramId + 1) & 0x7f);
+    return midi.createStoreParamRequest((byte)0, paramId, 42);
+  }
+  
+  /** create a fetch message */
+  @Benchmark
+  public MidiMessage createFetchParamRequest() {
+    paramId = (byte)((paramId + 1) & 0x7f);
+    return midi.createFetchParamRequest(paramId, (byte)0);
+  }
+}
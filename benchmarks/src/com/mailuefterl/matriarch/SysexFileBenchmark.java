@@ -0,0 +1,114 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Benchmarks for Sysex file export and import. The import file contains the full
+ * parameter set repeated the given number of times.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SysexFileBenchmark {
+  /** number of copies of the full parameter set in the import file */
+  @Param({"1", "100", "1000"})
+  public int copies;
+  /** controller with loaded parameter definitions */
+  private MatSwitchController ctl;
+  /** file to export to */
+  private File exportFile;
+  /** file to import from */
+  private File importFile;
+  
+  /** load parameter definitions and create the import file */
+  @Setup
+  public void setup() throws IOException {
+    ctl = new MatSwitchController();
+    exportFile = File.createTempFile("matswitch-export", ".syx");
+    importFile = File.createTempFile("matswitch-import", ".syx");
+    if (!ctl.exportSysex(exportFile, true)) {
+      throw new IOException("export failed");
+    }
+    final byte[] oneSet = Files.readAllBytes(exportFile.toPath());
+    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(importFile))) {
+      for (int i = 0; i < copies; i++) {
+        bos.write(oneSet);
+      }
+    }
+  }
+  
+  /** remove temporary files */
+  @TearDown
+  public void tearDown() {
+    exportFile.delete();
+    importFile.delete();
+  }
+  
+  /** discard logs written by export/import so that the log buffer does not grow */
+  @TearDown(Level.Iteration)
+  public void clearLogs() {
+    LogManager.getLogManager().clearLogs();
+  }
+  
+  /** export all parameters */
+  @Benchmark
+  public boolean exportSysex() {
+    return ctl.exportSysex(exportFile, true);
+  }
+  
+  /** import the large file */
+  @Benchmark
+  public boolean importSysex() {
+    return ctl.importSysex(importFile);
+  }
+}
@@ -0,0 +1,242 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known parameter values of all Matriarch units seen, keyed by MIDI interface
+ * and unit ID. Decides whether a cached value is still fresh enough to skip fetching
+ * it, based on a max. age per value source. Can be saved to and loaded from a
+ * binary file; loaded values are never fresh. Thread safe.
+ * <p>File format (big endian): magic "MSST", version (short), last used interface
+ * (UTF), last used unitId (byte, -1 if none), number of units (int), then per unit:
+ * interface (UTF), unitId (byte), number of values (short), then per value:
+ * paramId (byte), value (short), timestamp (long).
+ */
+public class DeviceStateCache {
+  /** magic number at start of state file */
+  private static final int FILE_MAGIC = 0x4d535354; // "MSST"
+  /** state file format version */
+  private static final short FILE_VERSION = 1;
+  /** number of possible unit/parameter IDs */
+  private static final int NUM_IDS = 128;
+  
+  /** unit states by interface name, indexed by unitId */
+  private final Map<String, UnitState[]> states = new HashMap<String, UnitState[]>();
+  /** max. age [msec] of a value until it must be fetched again, indexed by UnitState.Source ordinal */
+  private final long[] maxAgeMillis = new long[UnitState.Source.values().length];
+  
+  /** constructor
+   * @param fetchedMaxAge max. age [msec] of fetched values, 0 to always re-fetch
+   * @param storedMaxAge max. age [msec] of stored (unverified) values, 0 to always re-fetch
+   * @param verifiedMaxAge max. age [msec] of stored and verified values, 0 to always re-fetch */
+  public DeviceStateCache(final long fetchedMaxAge, final long storedMaxAge, final long verifiedMaxAge) {
+    maxAgeMillis[UnitState.Source.FETCHED.ordinal()] = fetchedMaxAge;
+    maxAgeMillis[UnitState.Source.STORED.ordinal()] = storedMaxAge;
+    maxAgeMillis[UnitState.Source.VERIFIED.ordinal()] = verifiedMaxAge;
+  }
+  
+  /** create a cache with max. ages from MatProperty settings */
+  public static DeviceStateCache fromProperties() {
+    return new DeviceStateCache(
+            MatProperty.CACHE_MAXAGE_FETCHED.getProperty(60000L),
+            MatProperty.CACHE_MAXAGE_STORED.getProperty(0L),
+            MatProperty.CACHE_MAXAGE_VERIFIED.getProperty(60000L));
+  }
+  
+  /** get the state of a unit on an interface (creates an empty state for unknown units) */
+  public UnitState getState(final String interfaceName, final byte unitId) {
+    synchronized(states) {
+      UnitState[] units = states.get(interfaceName);
+      if (units == null) {
+        units = new UnitState[NUM_IDS];
+        states.put(interfaceName, units);
+      }
+      if (units[unitId] == null) {
+        units[unitId] = new UnitState(unitId);
+      }
+      return units[unitId];
+    }
+  }
+  
+  /** is the cached value of a parameter known and young enough to skip fetching it? */
+  public boolean isFresh(final UnitState state, final byte paramId) {
+    return isFresh(state, paramId, System.currentTimeMillis());
+  }
+  
+  /** is the cached value of a parameter known and young enough (at time now) to skip fetching it? */
+  public boolean isFresh(final UnitState state, final byte paramId, final long now) {
+    final UnitState.Source source = state.getSource(paramId);
+    if (source == null) {
+      return false;
+    }
+    return (now - state.getTimestamp(paramId)) < maxAgeMillis[source.ordinal()];
+  }
+  
+  /** forget all cached values */
+  public void clear() {
+    synchronized(states) {
+      for (final UnitState[] units: states.values()) {
+        for (final UnitState state: units) {
+          if (state != null) {
+            state.clear();
+          }
+        }
+      }
+    }
+  }
+  
+  /** save all known values to a file (written to a temporary file first, which then replaces
+   * the file atomically if the file system supports it)
+   * @param lastInterface interface used last, restored by load()
+   * @param lastUnitId unit used last (-1 if none), restored by load() */
+  public void save(final File file, final String lastInterface, final byte lastUnitId) throws IOException {
+    final File tmpFile = new File(file.getPath() +".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+      out.writeInt(FILE_MAGIC);
+      out.writeShort(FILE_VERSION);
+      out.writeUTF(lastInterface);
+      out.writeByte(lastUnitId);
+      synchronized(states) {
+        int numUnits = 0;
+        for (final UnitState[] units: states.values()) {
+          for (final UnitState state: units) {
+            numUnits += (state != null) ? 1 : 0;
+          }
+        }
+        out.writeInt(numUnits);
+        for (final Map.Entry<String, UnitState[]> entry: states.entrySet()) {
+          for (final UnitState state: entry.getValue()) {
+            if (state != null) {
+              writeUnit(out, entry.getKey(), state);
+            }
+          }
+        }
+      }
+    }
+    try {
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (final AtomicMoveNotSupportedException e) {
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+  
+  /** write the known values of one unit */
+  private static void writeUnit(final DataOutputStream out, final String interfaceName, final UnitState state)
+          throws IOException {
+    final byte[] paramIds = new byte[NUM_IDS];
+    final int[] values = new int[NUM_IDS];
+    final long[] timestamps = new long[NUM_IDS];
+    int numValues = 0;
+    synchronized(state) {
+      for (byte paramId = 0; paramId >= 0; paramId++) {
+        if (state.getSource(paramId) != null) {
+          paramIds[numValues] = paramId;
+          values[numValues] = state.getValue(paramId);
+          timestamps[numValues] = state.getTimestamp(paramId);
+          numValues++;
+        }
+      }
+    }
+    out.writeUTF(interfaceName);
+    out.writeByte(state.getUnitId());
+    out.writeShort(numValues);
+    for (int i = 0; i < numValues; i++) {
+      out.writeByte(paramIds[i]);
+      out.writeShort(values[i]);
+      out.writeLong(timestamps[i]);
+    }
+  }
+  
+  /** load values from a file saved by save(), marking them as UnitState.Source.LOADED.
+   * Returns the interface and unitId used last, or null if the file does not exist. */
+  public LastUsed load(final File file) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("not a MatriarchSwitch state file");
+      }
+      final short version = in.readShort();
+      if (version != FILE_VERSION) {
+        throw new IOException("unsupported state file version "+ version);
+      }
+      final LastUsed lastUsed = new LastUsed(in.readUTF(), in.readByte());
+      final int numUnits = in.readInt();
+      for (int u = 0; u < numUnits; u++) {
+        final String interfaceName = in.readUTF();
+        final byte unitId = in.readByte();
+        if (unitId < 0) {
+          throw new IOException("invalid unitId "+ unitId);
+        }
+        final UnitState state = getState(interfaceName, unitId);
+        final int numValues = in.readShort();
+        for (int i = 0; i < numValues; i++) {
+          final byte paramId = in.readByte();
+          final int value = in.readShort();
+          final long timestamp = in.readLong();
+          state.setValue(paramId, value, UnitState.Source.LOADED, timestamp);
+        }
+      }
+      return lastUsed;
+    }
+    catch (final EOFException e) {
+      throw new IOException("state file is truncated", e);
+    }
+  }
+  
+  /** interface and unit that were used when the state was saved */
+  public static final class LastUsed {
+    /** interface name */
+    public final String interfaceName;
+    /** unitId, -1 if none */
+    public final byte unitId;
+    
+    /** constructor */
+    private LastUsed(final String interfaceName, final byte unitId) {
+      this.interfaceName = interfaceName;
+      this.unitId = unitId;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with log-linear buckets (8 buckets per power of 2,
+ * i.e. about 12% resolution) from 1 microsec to about 1 hour. Recording is a few atomic
+ * increments, percentiles are computed from the buckets when asked for.
+ */
+public class LatencyHistogram {
+  /** number of sub-buckets per power of 2 (as bit count) */
+  private static final int SUB_BITS = 3;
+  /** values below this are counted in individual buckets [microsec] */
+  private static final int LINEAR_LIMIT = 2 << SUB_BITS;
+  /** highest power of 2 with own buckets */
+  private static final int MAX_EXPONENT = 32;
+  /** number of buckets */
+  private static final int NUM_BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BITS) * (1 << SUB_BITS);
+  
+  /** number of values in each bucket */
+  private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+  /** number of values */
+  private final AtomicLong count = new AtomicLong();
+  /** sum of values [microsec] */
+  private final AtomicLong sum = new AtomicLong();
+  /** largest value [microsec] */
+  private final AtomicLong max = new AtomicLong();
+  
+  /** record a latency [nsec] */
+  public void record(final long nanos) {
+    final long micros = Math.max(0, nanos / 1000);
+    buckets.incrementAndGet(bucketIndex(micros));
+    count.incrementAndGet();
+    sum.addAndGet(micros);
+    max.accumulateAndGet(micros, Math::max);
+  }
+  
+  /** bucket for a value [microsec] */
+  private static int bucketIndex(final long micros) {
+    if (micros < LINEAR_LIMIT) {
+      return (int)micros;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    final int sub = (int)(micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+    return LINEAR_LIMIT + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+  }
+  
+  /** largest value in a bucket [microsec] */
+  private static long bucketLimit(final int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    final int exponent = (index - LINEAR_LIMIT) / (1 << SUB_BITS) + SUB_BITS + 1;
+    final int sub = (index - LINEAR_LIMIT) % (1 << SUB_BITS);
+    return (((long)((1 << SUB_BITS) + sub + 1)) << (exponent - SUB_BITS)) - 1;
+  }
+  
+  /** number of values recorded */
+  public long getCount() {
+    return count.get();
+  }
+  
+  /** mean value [microsec] */
+  public long getMeanMicros() {
+    final long n = count.get();
+    return (n == 0) ? 0 : sum.get() / n;
+  }
+  
+  /** largest value [microsec] */
+  public long getMaxMicros() {
+    return max.get();
+  }
+  
+  /** value that fraction (0..1) of all values are below or equal to [microsec], within bucket resolution */
+  public long getPercentileMicros(final double fraction) {
+    final long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long)Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketLimit(i), max.get());
+      }
+    }
+    return max.get();
+  }
+  
+  /** summary: count, p50, p99, max and mean [msec] */
+  @Override
+  public String toString() {
+    return String.format("n=%d p50=%.3f p99=%.3f max=%.3f mean=%.3f ms", getCount(),
+            getPercentileMicros(0.5) / 1000.0, getPercentileMicros(0.99) / 1000.0,
+            getMaxMicros() / 1000.0, getMeanMicros() / 1000.0);
+  }
+}
@@ -48,8 +48,12 @@ public class MatParameterAnswer {
    * {@code F0 04 17 23 [Parameter ID], [value MSB], [value LSB], 00 00 00 00 00 00 00 01 ([Unit ID]) F7}
    * <p>Note Matriarch Firmware 1.2.0 is buggy and does not send the UnitId in the answer. */
   public MatParameterAnswer(final SysexMessage sysex) throws ParseException {
-    byte[] data = sysex.getMessage();
-    if ((data.length != 17) && (data.length != 16)) {
+    this(sysex.getMessage(), sysex.getLength());
+  }
+  
+  /** constructor: parse raw Sysex data (only the first length bytes of data are used) */
+  public MatParameterAnswer(final byte[] data, final int length) throws ParseException {
+    if ((length != 17) && (length != 16)) {
       throw new ParseException("wrong sysex length", 0);
     }
     if (data[1] != 0x04) {
@@ -32,6 +32,44 @@ package com.mailuefterl.matriarch;
 public enum MatProperty {
   PACKAGE_VERSION("MatSwitch.version"),
   MIDI_TIMEOUT("MatSwitch.midi.timeout"),
+  MIDI_TIMEOUT_MIN("MatSwitch.midi.timeout.min"),
+  MIDI_FETCH_WINDOW("MatSwitch.midi.fetch.window"),
+  MIDI_RECEIVE_BUFFER("MatSwitch.midi.receive.buffer"),
+  MIDI_RECEIVE_FILTER("MatSwitch.midi.receive.filter"),
+  MIDI_SEND_RATE("MatSwitch.midi.send.rate"),
+  MIDI_SEND_BURST("MatSwitch.midi.send.burst"),
+  MIDI_SEND_GAP("MatSwitch.midi.send.gap"),
+  MIDI_RETRIES("MatSwitch.midi.retries"),
+  MIDI_RETRY_BACKOFF("MatSwitch.midi.retry.backoff"),
+  MIDI_RETRY_BACKOFF_MAX("MatSwitch.midi.retry.backoff.max"),
+  MIDI_STORE_VERIFY("MatSwitch.midi.store.verify"),
+  MIDI_LIVE_INTERVAL("MatSwitch.midi.live.interval"),
+  MIDI_DISCOVERY_INTERVAL("MatSwitch.midi.discovery.interval"),
+  MIDI_DISCOVERY_MISSES("MatSwitch.midi.discovery.misses"),
+  MIDI_CAPTURE("MatSwitch.midi.capture"),
+  MIDI_REPLAY_SPEED("MatSwitch.midi.replay.speed"),
+  CACHE_MAXAGE_FETCHED("MatSwitch.cache.maxage.fetched"),
+  CACHE_MAXAGE_STORED("MatSwitch.cache.maxage.stored"),
+  CACHE_MAXAGE_VERIFIED("MatSwitch.cache.maxage.verified"),
+  STATE_FILE("MatSwitch.state.file"),
+  MIDI_VIRTUAL("MatSwitch.midi.virtual"),
+  MIDI_VIRTUAL_LATENCY("MatSwitch.midi.virtual.latency"),
+  MIDI_VIRTUAL_JITTER("MatSwitch.midi.virtual.jitter"),
+  MIDI_VIRTUAL_RATE("MatSwitch.midi.virtual.rate"),
+  MIDI_VIRTUAL_BUFFER("MatSwitch.midi.virtual.buffer"),
+  MIDI_VIRTUAL_LEGACY("MatSwitch.midi.virtual.legacy"),
+  LOG_LEVEL("MatSwitch.log.level"),
+  LOG_CAPACITY_ERROR("MatSwitch.log.capacity.error"),
+  LOG_CAPACITY_INFO("MatSwitch.log.capacity.info"),
+  LOG_CAPACITY_DEBUG("MatSwitch.log.capacity.debug"),
+  LOG_CAPACITY_IO("MatSwitch.log.capacity.io"),
+  LOG_DISPATCH_INTERVAL("MatSwitch.log.dispatch.interval"),
+  LOG_FILE("MatSwitch.log.file"),
+  LOG_FILE_FORMAT("MatSwitch.log.file.format"),
+  LOG_FILE_MAXSIZE("MatSwitch.log.file.maxsize"),
+  LOG_FILE_MAXAGE("MatSwitch.log.file.maxage"),
+  LOG_FILE_COUNT("MatSwitch.log.file.count"),
+  LOG_FILE_QUEUE("MatSwitch.log.file.queue"),
   PARAMETER_DEF_URL("MatSwitch.paramdef.url");
   
   /** property key */
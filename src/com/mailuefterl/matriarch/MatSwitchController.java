@@ -36,10 +36,14 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MidiMessage;
 import javax.sound.midi.SysexMessage;
+import javax.swing.SwingUtilities;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mailuefterl.matriarch.parameter.IParameterValue;
@@ -68,6 +72,38 @@ public class MatSwitchController {
   private ParameterGroup allParametersGroup;
   /** information about the loaded parameters file */
   private JsonParameterLoader paramLoader;
+  /** retry policy for retrieving/storing parameters */
+  private final RetryPolicy retryPolicy = RetryPolicy.fromProperties();
+  /** parameters that could not be retrieved/stored in the last retrieve/store operation */
+  private List<Parameter> failedParameters = new ArrayList<Parameter>(0);
+  /** Matriarch units found by the last unit discovery */
+  private List<MatriarchUnit> discoveredUnits = new ArrayList<MatriarchUnit>(0);
+  /** last known parameter values per interface and unit */
+  private final DeviceStateCache stateCache = DeviceStateCache.fromProperties();
+  /** name of the current MIDI OutPort (identifies the bus in stateCache) */
+  private volatile String currentInterface = "";
+  /** file to save stateCache in between runs, null if disabled */
+  private final File stateFile = getStateFile();
+  /** writes the state file, so that MIDI threads do not wait for file I/O (see saveStateAsync()) */
+  private final ExecutorService stateWriter = Executors.newSingleThreadExecutor(r -> {
+    final Thread t = new Thread(r, "MatSwitch state writer");
+    t.setDaemon(true);
+    return t;
+  });
+  /** is a saveStateAsync() request waiting for the state writer? */
+  private final AtomicBoolean saveStatePending = new AtomicBoolean();
+  /** unit used last (saved with the state), -1 if none */
+  private volatile byte lastUnitId = -1;
+  /** read back stored parameters and compare them with the values sent? */
+  private volatile boolean verifyStores = Boolean.parseBoolean(MatProperty.MIDI_STORE_VERIFY.getProperty("false"));
+  /** is a revalidation of the state loaded from file in progress? */
+  private final AtomicBoolean revalidating = new AtomicBoolean();
+  /** background search for units on the MIDI bus */
+  private UnitDiscovery discovery;
+  /** queue for storing edits immediately in live edit mode */
+  private WriteBehindQueue liveEditQueue;
+  /** send every edit to Matriarch immediately? */
+  private volatile boolean liveEdit;
   
   /** constructor for new controller */
   public MatSwitchController() {
@@ -83,11 +119,29 @@ public class MatSwitchController {
   /** register midi handler */
   protected void setMidiHandler(final MatSwitchMidi midi) {
     this.midi = midi;
+    midi.setParameters(allParametersGroup.getParameters());
+    liveEditQueue = new WriteBehindQueue(midi, MatProperty.MIDI_LIVE_INTERVAL.getProperty(20L));
+    discovery = new UnitDiscovery(midi, MatProperty.MIDI_DISCOVERY_INTERVAL.getProperty(60000L),
+            MatProperty.MIDI_DISCOVERY_MISSES.getProperty(3));
+    discovery.addListener(units -> {
+      discoveredUnits = units;
+      if (gui != null) {
+        // called in the MIDI sender or receive thread, showUnits() hands over to the EDT itself
+        gui.showUnits(withPseudoUnit(units));
+      }
+    });
   }
   
   /** get it all going */
   public void start() {
+    loadState();
+    if (stateFile != null) {
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> saveState(), "MatSwitch state saver"));
+    }
     gui.start();
+    if (discovery != null) {
+      discovery.start();
+    }
   }
   
   /** interface method: retrieve a list of midi interfaces */
@@ -106,10 +160,73 @@ public class MatSwitchController {
     return midi.fetchInterfaces(true, false);
   }
   
+  /** interface method: enumerate MIDI interfaces again on the next fetchMidiOutPorts()/fetchMidiInPorts() */
+  public void refreshMidiInterfaces() {
+    if (midi != null) {
+      midi.refreshInterfaces();
+    }
+  }
+  
+  /** interface method: find the MIDI port pairs that reach Matriarch units by probing the
+   * OutPorts one after another, then confirming each pair found with a request addressed to
+   * the unit. Takes one MIDI timeout (or the min. timeout per OutPort if longer), plus the min.
+   * timeout and up to one MIDI timeout for each unit on each pair found. */
+  public CompletableFuture<List<PortProber.Result>> probeMidiPortsAsync() {
+    if (midi == null) {
+      return CompletableFuture.completedFuture(new ArrayList<PortProber.Result>(0));
+    }
+    byte confirmParamId = 0;
+    for (final Parameter param: allParametersGroup.getParameters()) {
+      if (param.midiNumber != 0) {
+        confirmParamId = param.midiNumber;
+        break;
+      }
+    }
+    return new PortProber(midi, MatProperty.MIDI_TIMEOUT.getProperty(1000L), MatProperty.MIDI_TIMEOUT_MIN.getProperty(30L),
+            confirmParamId)
+            .probe(fetchMidiInPorts(), fetchMidiOutPorts());
+  }
+  
+  /** interface method: feed the received messages of a MIDI capture file into the receive path
+   * (speed from MatSwitch.midi.replay.speed). The future completes with the number of messages fed. */
+  public CompletableFuture<Integer> replayMidiCapture(final File captureFile) {
+    if (midi == null) {
+      return CompletableFuture.completedFuture(0);
+    }
+    double speed = 1.0;
+    try {
+      speed = Double.parseDouble(MatProperty.MIDI_REPLAY_SPEED.getProperty("1"));
+    }
+    catch (final NumberFormatException e) {
+      log.error("Invalid ", MatProperty.MIDI_REPLAY_SPEED, ", using original speed: ", e);
+    }
+    return new MidiCaptureReplayer(midi, speed).replay(captureFile);
+  }
+  
+  /** interface method: write a snapshot of the MIDI metrics to a text file */
+  public boolean saveMidiMetrics(final File metricsFile) {
+    if (midi == null) {
+      return false;
+    }
+    try {
+      midi.getMetrics().writeSnapshot(metricsFile);
+      log.info("Saved MIDI statistics to ", metricsFile);
+      return true;
+    }
+    catch (final IOException e) {
+      log.error("Unable to save MIDI statistics to ", metricsFile, ": ", e);
+      return false;
+    }
+  }
+  
   /** set the currently selected Midi interface */
   public void setMidiOutPort(final MidiInterface iface) {
     if (midi != null) {
       midi.setOutPort(iface);
+      discovery.reset();
+    }
+    if (iface != null) {
+      currentInterface = iface.toString();
     }
   }
   
@@ -117,17 +234,23 @@ public class MatSwitchController {
   public void setMidiInPort(final MidiInterface iface) {
     if (midi != null) {
       midi.setInPort(iface);
+      discovery.reset();
     }
   }
   
-  /** interface method: retrieve a list of devices found on a MIDI interface */
-  public List<MatriarchUnit> fetchMidiUnits() {
+  /** interface method: find devices on the MIDI interface without blocking.
+   * Units are also published to the UI as soon as they answer. The list always
+   * contains the pseudo-unit for simulation. */
+  public CompletableFuture<List<MatriarchUnit>> discoverUnitsAsync() {
     if (midi == null) {
-      final List<MatriarchUnit> ret = new ArrayList<MatriarchUnit>(0);
-      ret.add(pseudoMatriarch);
-      return ret;
+      return CompletableFuture.completedFuture(withPseudoUnit(new ArrayList<MatriarchUnit>(0)));
     }
-    final List<MatriarchUnit> ret = midi.fetchUnits();
+    return discovery.probe().thenApply(units -> withPseudoUnit(units));
+  }
+  
+  /** helper: copy of a unit list with the pseudo-unit for simulation added */
+  private static List<MatriarchUnit> withPseudoUnit(final List<MatriarchUnit> units) {
+    final List<MatriarchUnit> ret = new ArrayList<MatriarchUnit>(units);
     ret.add(pseudoMatriarch);
     return ret;
   }
@@ -136,6 +259,7 @@ public class MatSwitchController {
    * tell UI to re-fetch interfaces.
    */
   public void midiFailed() {
+    refreshMidiInterfaces();
     setMidiOutPort(null);
     setMidiInPort(null);
     gui.midiFailed();
@@ -145,11 +269,145 @@ public class MatSwitchController {
   public void midiChanged() {
     log.debug("List of Midi interfaces changed, re-fetching.");
     gui.midiChanged();
+    if (discovery != null) {
+      discovery.probe(false); // a unit may have been (re-)connected behind the current interface
+    }
   }
 
   /** set the currently selected Matriarch unitId */
   public void setMatUnit(final MatriarchUnit unit) {
+    if ((liveEditQueue != null) && !isSameUnit(currentMatriarch, unit)) {
+      liveEditQueue.clear();
+    }
     currentMatriarch = unit;
+    if ((unit != null) && !unit.isPseudo()) {
+      lastUnitId = unit.getUnitId();
+    }
+    applyCachedState();
+  }
+  
+  /** helper: do both refer to the same physical unit? (discovery creates a new object when a unit answers again) */
+  private static boolean isSameUnit(final MatriarchUnit a, final MatriarchUnit b) {
+    return (a != null) && (b != null) && !a.isPseudo() && !b.isPseudo() && (a.getUnitId() == b.getUnitId());
+  }
+  
+  /** set the parameters to the cached values of the current unit (if any are known) */
+  private void applyCachedState() {
+    if ((currentMatriarch == null) || currentMatriarch.isPseudo()) {
+      return;
+    }
+    if (applyState(getUnitState(currentMatriarch.getUnitId())) > 0) {
+      log.info("Using cached Parameter values of ", currentMatriarch);
+    }
+  }
+  
+  /** set the parameters to the known values of a unit state, returns the number of values set.
+   * Only the retrieved value is replaced for parameters with unsaved local edits
+   * (current value differs from retrieved value), so that the edits are kept. */
+  private int applyState(final UnitState state) {
+    int numApplied = 0;
+    for (final Parameter param: allParametersGroup.getParameters()) {
+      final int val = state.getValue(param.midiNumber);
+      final IParameterValue parsival = (val < 0) ? null : param.findValue(val);
+      if (parsival != null) {
+        final boolean edited = !param.getCurrentValue().equals(param.getRetrievedValue());
+        param.setRetrievedValue(parsival);
+        if (!edited) {
+          param.setCurrentValue(parsival);
+        }
+        numApplied++;
+      }
+    }
+    return numApplied;
+  }
+  
+  /** get the file to save the state in, null if disabled */
+  private static File getStateFile() {
+    final String fileName = MatProperty.STATE_FILE.getProperty(
+            new File(System.getProperty("user.home"), ".MatriarchSwitch.state").getPath());
+    return fileName.trim().isEmpty() ? null : new File(fileName);
+  }
+  
+  /** load the state saved by an earlier run, and show the values of the unit used last */
+  private void loadState() {
+    if (stateFile == null) {
+      return;
+    }
+    try {
+      final DeviceStateCache.LastUsed lastUsed = stateCache.load(stateFile);
+      if (lastUsed == null) {
+        return;
+      }
+      log.info("Loaded last known state from ", stateFile);
+      if (lastUsed.unitId >= 0) {
+        currentInterface = lastUsed.interfaceName;
+        lastUnitId = lastUsed.unitId;
+        final UnitState state = getUnitState(lastUsed.unitId);
+        if (applyState(state) > 0) {
+          gui.showStateInfo(String.format("last known state of unit %02X from %tF %<tR, not yet revalidated",
+                  lastUsed.unitId, state.getOldestTimestamp()));
+        }
+      }
+    }
+    catch (final IOException e) {
+      log.error("Cannot load last known state from ", stateFile, ": ", e);
+    }
+  }
+  
+  /** save the state for the next run on the state writer thread (returns immediately,
+   * requests made while one is waiting are merged) */
+  public void saveStateAsync() {
+    if ((stateFile != null) && saveStatePending.compareAndSet(false, true)) {
+      stateWriter.execute(() -> {
+        saveStatePending.set(false);
+        saveState();
+      });
+    }
+  }
+  
+  /** save the state for the next run (blocks while writing the file) */
+  public void saveState() {
+    if (stateFile == null) {
+      return;
+    }
+    try {
+      synchronized(stateFile) {
+        stateCache.save(stateFile, currentInterface, lastUnitId);
+      }
+      log.debug("Saved last known state to ", stateFile);
+    }
+    catch (final IOException e) {
+      log.error("Cannot save last known state to ", stateFile, ": ", e);
+    }
+  }
+  
+  /** does the current unit show values loaded from the state file that should be revalidated? */
+  public boolean needsRevalidation() {
+    return (midi != null) && !revalidating.get() && (currentMatriarch != null) && !currentMatriarch.isPseudo()
+            && getUnitState(currentMatriarch.getUnitId()).hasLoadedValues()
+            && getChangedParameters().isEmpty();
+  }
+  
+  /** re-fetch the values of the current unit that were loaded from the state file */
+  public CompletableFuture<Boolean> revalidateAsync() {
+    if (!revalidating.compareAndSet(false, true)) {
+      return CompletableFuture.completedFuture(false);
+    }
+    log.info("Revalidating last known state of ", currentMatriarch);
+    return retrieveAllAsync().handle((success, ex) -> {
+      revalidating.set(false);
+      if (Boolean.TRUE.equals(success)) {
+        SwingUtilities.invokeLater(() -> gui.showStateInfo(null));
+        return true;
+      }
+      return false;
+    });
+  }
+  
+  /** forget all cached parameter values, so that the next retrieve fetches everything */
+  public void clearStateCache() {
+    stateCache.clear();
+    log.info("Cleared cached Parameter values");
   }
   
   /** retrieve one parameter from selected Matriarch */
@@ -176,19 +434,95 @@ public class MatSwitchController {
     }
   }
   
-  /** retrieve ALL parameters from selected Matriarch */
-  public boolean retrieveAllParameters() {
+  /** retrieve ALL parameters from selected Matriarch without blocking. Parameters
+   * without answer are re-requested according to retryPolicy, see getFailedParameters()
+   * for the parameters that could not be retrieved at all. The future completes with
+   * true if all parameters could be retrieved. */
+  public CompletableFuture<Boolean> retrieveAllAsync() {
     log.info("Retrieving all parameters...");
-    int numParams = 0;
-    for (final Parameter param: allParametersGroup.getParameters()) {
-      if (retrieveParameter(param) == null) {
-        log.error("Retrieval of all parameters failed.");
-        return false;
+    final List<Parameter> params = allParametersGroup.getParameters();
+    failedParameters = new ArrayList<Parameter>(0);
+    if ((midi == null) || (currentMatriarch == null) || currentMatriarch.isPseudo()) {
+      for (final Parameter param: params) {
+        retrieveParameter(param);
       }
-      numParams++;
+      log.info("Simulation mode, all ", params.size(), " Parameters set to default.");
+      return CompletableFuture.completedFuture(true);
     }
-    log.info("Successfully retrieved ", numParams, " Parameters.");
-    return true;
+    midi.beginSendBatch();
+    return startRetrieveJob(currentMatriarch, params).thenApply(success -> {
+      log.debug("Retrieve batch: ", midi.getSendBatchStats());
+      saveStateAsync();
+      return success;
+    });
+  }
+  
+  /** retrieve ALL parameters from all discovered Matriarch units at once. Answers
+   * are told apart by their unitId, so all units are retrieved concurrently, except
+   * units with firmware that does not send its unitId (retrieved one after another).
+   * The values of the current unit are also set in the parameters. */
+  public CompletableFuture<Boolean> retrieveAllUnitsAsync() {
+    final List<MatriarchUnit> units = discoveredUnits;
+    if ((midi == null) || units.isEmpty()) {
+      return retrieveAllAsync();
+    }
+    log.info("Retrieving all parameters from ", units.size(), " Matriarch units...");
+    final List<Parameter> params = allParametersGroup.getParameters();
+    failedParameters = new ArrayList<Parameter>(0);
+    midi.beginSendBatch();
+    final List<CompletableFuture<Boolean>> concurrent = new ArrayList<CompletableFuture<Boolean>>();
+    for (final MatriarchUnit unit: units) {
+      if (unit.answersWithUnitId()) {
+        concurrent.add(startRetrieveJob(unit, params));
+      }
+    }
+    CompletableFuture<Boolean> ret = CompletableFuture.allOf(concurrent.toArray(new CompletableFuture<?>[0]))
+            .thenApply(v -> {
+              boolean success = true;
+              for (final CompletableFuture<Boolean> job: concurrent) {
+                success &= job.join();
+              }
+              return success;
+            });
+    for (final MatriarchUnit unit: units) {
+      if (!unit.answersWithUnitId()) {
+        ret = ret.thenCompose(success -> startRetrieveJob(unit, params).thenApply(ok -> success && ok));
+      }
+    }
+    return ret.thenApply(success -> {
+      log.debug("Retrieve batch: ", midi.getSendBatchStats());
+      saveStateAsync();
+      return success;
+    });
+  }
+  
+  /** get the last known parameter values of a unit on the current interface
+   * (creates an empty state for unknown units) */
+  public UnitState getUnitState(final byte unitId) {
+    return stateCache.getState(currentInterface, unitId);
+  }
+  
+  /** start retrieving the given parameters from a unit, skipping parameters
+   * with a fresh cached value */
+  private CompletableFuture<Boolean> startRetrieveJob(final MatriarchUnit unit, final List<Parameter> params) {
+    final RetrieveJob job = new RetrieveJob(unit, params);
+    final List<Integer> toFetch = new ArrayList<Integer>(params.size());
+    final long now = System.currentTimeMillis();
+    for (int i = 0; i < params.size(); i++) {
+      if (!stateCache.isFresh(job.state, params.get(i).midiNumber, now) || !job.useCached(i)) {
+        toFetch.add(i);
+      }
+    }
+    if (toFetch.size() < params.size()) {
+      log.info(params.size() - toFetch.size(), " Parameters of ", unit, " are cached, fetching ", toFetch.size());
+    }
+    return job.fetchRound(toFetch, 0).thenApply(v -> job.finish());
+  }
+  
+  /** get the parameters that could not be retrieved/stored in the last
+   * retrieveAllAsync() or storeParameters() operation */
+  public List<Parameter> getFailedParameters() {
+    return failedParameters;
   }
   
   /** get a list of all changed parameters (currentValue != retrievedValue) */
@@ -202,6 +536,29 @@ public class MatSwitchController {
     return ret;
   }
   
+  /** is live edit mode (every edit is stored immediately) on? */
+  public boolean isLiveEdit() {
+    return liveEdit;
+  }
+  
+  /** switch live edit mode on/off */
+  public void setLiveEdit(final boolean live) {
+    liveEdit = live;
+    log.info("Live edit mode ", live ? "on" : "off");
+  }
+  
+  /** set the value of a parameter (from user input). In live edit mode, the
+   * value is queued to be stored to Matriarch if it differs from the retrieved one
+   * (or an earlier edit of the parameter is still on its way). */
+  public void editParameter(final Parameter param, final IParameterValue value) {
+    param.setCurrentValue(value);
+    if (liveEdit && (value != null) && (liveEditQueue != null)
+            && (currentMatriarch != null) && !currentMatriarch.isPseudo()
+            && (param.isChanged() || liveEditQueue.isQueued(param))) {
+      liveEditQueue.submit(param, getUnitState(currentMatriarch.getUnitId()), value);
+    }
+  }
+  
   /** store one parameter to Matriarch */
   public boolean storeParameter(final Parameter param) {
     log.info("Storing Parameter ", param);
@@ -209,15 +566,63 @@ public class MatSwitchController {
             param.midiNumber, param.getCurrentValue().getNumber());
     if (ret) {
       param.setRetrievedValue(param.getCurrentValue());
+      getUnitState(currentMatriarch.getUnitId()).setValue(param.midiNumber,
+              param.getCurrentValue().getNumber(), UnitState.Source.STORED);
     } else {
       log.error("Failed storing Parameter ", param);
     }
     return ret;
   }
   
-  /** store all changed parameters to Matriarch */
+  /** should stored parameters be read back and compared? */
+  public boolean isVerifyStores() {
+    return verifyStores;
+  }
+  
+  /** switch verification of stored parameters on/off */
+  public void setVerifyStores(final boolean verify) {
+    verifyStores = verify;
+  }
+  
+  /** store parameters to Matriarch and read each one back (pipelined), returns
+   * for each parameter if the value read back matches the value stored */
+  private boolean[] storeParametersVerified(final List<Parameter> params) {
+    final byte unitId = currentMatriarch.getUnitId();
+    final byte[] paramIds = new byte[params.size()];
+    final int[] values = new int[params.size()];
+    for (int i = 0; i < paramIds.length; i++) {
+      paramIds[i] = params.get(i).midiNumber;
+      values[i] = params.get(i).getCurrentValue().getNumber();
+    }
+    log.info("Storing and verifying ", params.size(), " Parameters");
+    final int[] readBack = midi.storeParametersVerifiedAsync(unitId, paramIds, values).join();
+    final UnitState state = getUnitState(unitId);
+    final boolean[] verified = new boolean[paramIds.length];
+    for (int i = 0; i < paramIds.length; i++) {
+      final Parameter param = params.get(i);
+      verified[i] = (readBack[i] == values[i]);
+      if (readBack[i] >= 0) {
+        state.setValue(paramIds[i], readBack[i], verified[i] ? UnitState.Source.VERIFIED : UnitState.Source.FETCHED);
+      }
+      if (verified[i]) {
+        param.setRetrievedValue(param.getCurrentValue());
+      } else if (readBack[i] < 0) {
+        log.error("Cannot verify Parameter ", param, ": no answer");
+      } else {
+        log.error("Verification failed for Parameter ", param, ": stored ", values[i], ", read back ", readBack[i]);
+      }
+    }
+    return verified;
+  }
+  
+  /** store all changed parameters to Matriarch (and verify them, if enabled).
+   * In verify mode, parameters that could not be verified are retried according to
+   * retryPolicy. Without it, a store only fails if sending failed, which closes the
+   * MIDI ports, so there is nothing to retry. See getFailedParameters() for the
+   * parameters that could not be stored at all. */
   public boolean storeParameters() {
     log.info("Storing changed parameters...");
+    failedParameters = new ArrayList<Parameter>(0);
     if ((midi == null) || (currentMatriarch == null) || currentMatriarch.isPseudo()) {
       for (final Parameter param: getChangedParameters()) {
         param.setRetrievedValue(param.getCurrentValue());
@@ -225,22 +630,51 @@ public class MatSwitchController {
       log.info("Simulation mode, mocking success.");
       return true;
     }
-    boolean ret = true;
+    final List<Parameter> failed = new ArrayList<Parameter>();
+    List<Parameter> toStore = getChangedParameters();
+    final int[] numFailures = new int[toStore.size()];
+    final List<Parameter> changed = toStore;
     int numStored = 0;
-    for (final Parameter param: getChangedParameters()) {
-      ret = storeParameter(param);
-      if (ret) {
-        numStored++;
-      } else {
-        break;
+    midi.beginSendBatch();
+    if (!verifyStores) {
+      for (final Parameter param: toStore) {
+        if (storeParameter(param)) {
+          numStored++;
+        } else {
+          failed.add(param);
+        }
       }
+      toStore = new ArrayList<Parameter>(0); // nothing to retry, sending failed and the ports are closed
     }
-    if (ret) {
-      log.info("Successfully stored ", numStored, " Parameters.");
-    } else {
-      log.info("Aborted after ", numStored, " successfully stored Parameters.");
+    for (int round = 0; !toStore.isEmpty(); round++) {
+      if (round > 0) {
+        retryPolicy.backoff(round - 1);
+        log.info("Retrying ", toStore.size(), " Parameters (retry ", round, ")");
+        midi.countRetries(currentMatriarch.getUnitId(), toStore.size());
+      }
+      final List<Parameter> missing = new ArrayList<Parameter>();
+      final boolean[] verified = storeParametersVerified(toStore);
+      for (int i = 0; i < toStore.size(); i++) {
+        final Parameter param = toStore.get(i);
+        if (verified[i]) {
+          numStored++;
+        } else if (retryPolicy.mayRetry(++numFailures[changed.indexOf(param)]) && midi.isConnected()) {
+          missing.add(param);
+        } else {
+          failed.add(param);
+        }
+      }
+      toStore = missing;
     }
-    return ret;
+    log.debug("Store batch: ", midi.getSendBatchStats());
+    saveStateAsync();
+    failedParameters = failed;
+    if (!failed.isEmpty()) {
+      log.error("Stored ", numStored, " Parameters, unable to store: ", failed);
+      return false;
+    }
+    log.info("Successfully stored ", numStored, " Parameters.");
+    return true;
   }
   
   /** reset all parameters to their default value */
@@ -270,11 +704,8 @@ public class MatSwitchController {
       for (final Parameter param: allParametersGroup.getParameters()) {
         if (allParameters || param.isChanged()) {
           log.debug("Exporting parameter ", param);
-          final MidiMessage msg = midi.createStoreParamRequest(unitId, param.midiNumber, param.getCurrentValue().getNumber());
-          if (msg != null) {
-            bos.write(msg.getMessage());
-            numParams ++;
-          }
+          bos.write(SysexEncoder.storeTemplate(param.midiNumber, param.getCurrentValue().getNumber(), unitId));
+          numParams ++;
         }
       }
       log.info("Exported ", numParams, " Parameters to ", exportFile.getName());
@@ -342,8 +773,8 @@ public class MatSwitchController {
     }
   }
   
-  /** helper function: find the parameter with the given midiNumber */
-  private Parameter findParameter(final byte midiNumber) {
+  /** helper function: find the parameter with the given midiNumber (package-private for benchmarks) */
+  Parameter findParameter(final byte midiNumber) {
     for (final Parameter param: allParametersGroup.getParameters()) {
       if (param.midiNumber == midiNumber) {
         return param;
@@ -403,4 +834,111 @@ public class MatSwitchController {
     }
     allParametersGroup = ParameterGroup.createSuperGroup("ALL Parameters");
   }
+  
+  /** state of retrieving all parameters from one unit: fetches parameters in rounds,
+   * re-requesting only the missing ones until their retry budget is used up.
+   * Values are stored in the unit's UnitState, and in the parameters if the unit
+   * is the currently selected one. */
+  private final class RetrieveJob {
+    /** unit to retrieve from */
+    private final MatriarchUnit unit;
+    /** unit ID to retrieve from */
+    private final byte unitId;
+    /** state table to store values in */
+    private final UnitState state;
+    /** parameters to retrieve */
+    private final List<Parameter> params;
+    /** number of failed attempts per parameter */
+    private final int[] numFailures;
+    /** parameters that could not be retrieved */
+    private final List<Parameter> failed = new ArrayList<Parameter>();
+    /** number of successfully retrieved parameters (including cached ones) */
+    private int numRetrieved;
+    /** number of parameters taken from the cache */
+    private int numCached;
+    
+    /** constructor */
+    private RetrieveJob(final MatriarchUnit unit, final List<Parameter> params) {
+      this.unit = unit;
+      this.unitId = unit.getUnitId();
+      this.state = getUnitState(unitId);
+      this.params = params;
+      this.numFailures = new int[params.size()];
+    }
+    
+    /** take the cached value of the parameter with the given index, returns false
+     * if it cannot be used */
+    private boolean useCached(final int idx) {
+      final Parameter param = params.get(idx);
+      final IParameterValue parsival = param.findValue(state.getValue(param.midiNumber));
+      if (parsival == null) {
+        return false;
+      }
+      if (unit == currentMatriarch) {
+        param.setRetrievedValue(parsival);
+        param.setCurrentValue(parsival);
+      }
+      numRetrieved++;
+      numCached++;
+      return true;
+    }
+    
+    /** fetch the parameters with the given indices, then schedule a retry round for the missing ones */
+    private CompletableFuture<Void> fetchRound(final List<Integer> toFetch, final int round) {
+      if (round > 0) {
+        log.info("Re-requesting ", toFetch.size(), " missing Parameters from ", unit, " (retry ", round, ")");
+        midi.countRetries(unitId, toFetch.size());
+      }
+      final byte[] paramIds = new byte[toFetch.size()];
+      for (int i = 0; i < paramIds.length; i++) {
+        paramIds[i] = params.get(toFetch.get(i)).midiNumber;
+      }
+      return midi.fetchParametersAsync(unitId, paramIds).thenCompose(values -> {
+        final List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < values.length; i++) {
+          final int idx = toFetch.get(i);
+          final Parameter param = params.get(idx);
+          if (values[i] < 0) {
+            if (retryPolicy.mayRetry(++numFailures[idx]) && midi.isConnected()) {
+              missing.add(idx);
+            } else {
+              failed.add(param);
+            }
+            continue;
+          }
+          final IParameterValue parsival = param.findValue(values[i]);
+          if (parsival == null) {
+            log.error("Unable to parse parameter value: ", param, " ", values[i]);
+            failed.add(param);
+            continue;
+          }
+          state.setValue(param.midiNumber, values[i], UnitState.Source.FETCHED);
+          if (unit == currentMatriarch) {
+            param.setRetrievedValue(parsival);
+            param.setCurrentValue(parsival);
+          }
+          numRetrieved++;
+        }
+        if (missing.isEmpty()) {
+          return CompletableFuture.completedFuture(null);
+        }
+        return midi.delay(retryPolicy.getBackoff(round)).thenCompose(v -> fetchRound(missing, round + 1));
+      });
+    }
+    
+    /** log the result and publish failed parameters of the current unit */
+    private boolean finish() {
+      if (unit == currentMatriarch) {
+        failedParameters = failed;
+      }
+      if (!failed.isEmpty()) {
+        log.error("Retrieved ", numRetrieved, " of ", params.size(), " Parameters from ", unit,
+                ", unable to retrieve: ", failed);
+        return false;
+      }
+      log.info("Successfully retrieved ", numRetrieved, " Parameters from ", unit,
+              (numCached > 0) ? " ("+ numCached +" from cache)." : ".");
+      return true;
+    }
+  }
 }
@@ -27,26 +27,34 @@ package com.mailuefterl.matriarch;
  */
 
 import java.text.ParseException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiDeviceReceiver;
 import javax.sound.midi.MidiDeviceTransmitter;
 import javax.sound.midi.MidiMessage;
-import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
-import javax.sound.midi.Sequencer;
-import javax.sound.midi.Synthesizer;
 import javax.sound.midi.SysexMessage;
 
+import com.mailuefterl.matriarch.parameter.Parameter;
 import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.ILogger.LogType;
 import com.mailuefterl.matriarch.util.LogManager;
 
 import uk.co.xfactorylibrarians.coremidi4j.CoreMidiDeviceProvider;
@@ -60,66 +68,172 @@ public class MatSwitchMidi {
   /** logger */
   private final static ILogger log = LogManager.getLogger();
   
-  /** timeout [msec] for MIDI requests */
+  /** timeout [msec] for MIDI requests (upper limit for adaptive timeouts) */
   private final static long TIMEOUT = MatProperty.MIDI_TIMEOUT.getProperty(1000L);
+  /** lower limit [msec] for adaptive timeouts */
+  private final static long TIMEOUT_MIN = MatProperty.MIDI_TIMEOUT_MIN.getProperty(30L);
+  /** max. time [nsec] the receive thread parks before checking for dropped messages */
+  private final static long RECEIVE_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+  /** max. number of fetch requests in flight when fetching a list of parameters */
+  private final static int FETCH_WINDOW = MatProperty.MIDI_FETCH_WINDOW.getProperty(8);
+  /** unit discovery ends when no answer arrived for this many times the delay of the first answer */
+  private final static int DISCOVERY_QUIET_FACTOR = 3;
   
   /** controller instance */
   private final MatSwitchController ctl;
   /** currently selected Midi interface for sending */
-  private MidiDeviceTransmitter currentInPort;
+  private volatile MidiDeviceTransmitter currentInPort;
   /** currently selected Midi interface for receiving */
-  private MidiDeviceReceiver currentOutPort;
+  private volatile MidiDeviceReceiver currentOutPort;
   /** internal receiver to get incoming Sysex messages */
   private final SysexReceiver sysexReceiver = new SysexReceiver();
-  /** queue for incoming Sysex messages */
-  private final Queue<SysexMessage> incomingMessages = new ArrayDeque<SysexMessage>(100);
+  /** ring buffer for incoming Sysex messages (filled by driver thread, read by receive thread) */
+  private final SysexRingBuffer incomingMessages = new SysexRingBuffer(
+          MatProperty.MIDI_RECEIVE_BUFFER.getProperty(256));
+  /** ring buffer for injected messages (filled by injectIncoming(), read by receive thread) */
+  private final SysexRingBuffer injectedMessages = new SysexRingBuffer(
+          MatProperty.MIDI_RECEIVE_BUFFER.getProperty(256), incomingMessages);
+  /** drops incoming messages that cannot be Matriarch answers (applied in driver thread) */
+  private final MidiInputFilter inputFilter = MidiInputFilter.fromProperties();
+  /** records all messages sent and received, null if disabled */
+  private final MidiCaptureRecorder capture = MidiCaptureRecorder.fromProperties();
+  /** latency histograms and counters */
+  private final MidiMetrics metrics = new MidiMetrics();
+  /** name of current MIDI input port (for metrics) */
+  private volatile String inPortName;
+  /** name of current MIDI output port (for metrics) */
+  private volatile String outPortName;
+  /** fetch requests waiting for an answer, in the order they were sent */
+  private final List<PendingFetch> pendingFetches = new ArrayList<PendingFetch>();
+  /** listeners notified of every incoming parameter answer (called in receive thread) */
+  private final List<Consumer<MatParameterAnswer>> answerListeners = new CopyOnWriteArrayList<Consumer<MatParameterAnswer>>();
+  /** thread that sends requests (in order) and runs timeouts */
+  private final ScheduledThreadPoolExecutor scheduler;
+  /** paces outgoing messages so that Matriarch's input buffer does not overflow */
+  private final SendPacer sendPacer = new SendPacer(
+          MatProperty.MIDI_SEND_RATE.getProperty(3125),
+          MatProperty.MIDI_SEND_BURST.getProperty(256),
+          MatProperty.MIDI_SEND_GAP.getProperty(0L));
+  /** round trip time estimators, indexed by unit ID (created on first use) */
+  private final RttEstimator[] rttEstimators = new RttEstimator[128];
+  /** known parameter definitions (for precomputed message tables) */
+  private List<Parameter> parameters = new ArrayList<Parameter>(0);
+  /** precomputed messages, indexed by unit ID (created on first use) */
+  private final SysexMessageTable[] messageTables = new SysexMessageTable[128];
+  /** available MIDI interfaces */
+  private final MidiDeviceRegistry deviceRegistry = new MidiDeviceRegistry();
+  /** emulated Matriarch offered as interface (if configured, created on first use) */
+  private VirtualMatriarch virtualMatriarch;
   
 
   /** constructor */
   public MatSwitchMidi(final MatSwitchController ctl) {
     this.ctl = ctl;
+    scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread t = new Thread(r, "MatSwitchMidi sender");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+    if (capture != null) {
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> capture.close(1000), "MatSwitchMidi capture closer"));
+    }
+    final Thread receiver = new Thread(() -> { receiveRunner(); }, "MatSwitchMidi receiver");
+    receiver.setDaemon(true);
+    receiver.start();
     try {
       CoreMidiDeviceProvider.getMidiDeviceInfo(); // workaround concurrency issue in MidiSystem/CoreMidi4J
-      CoreMidiDeviceProvider.addNotificationListener(() -> ctl.midiChanged());
+      CoreMidiDeviceProvider.addNotificationListener(() -> {
+        deviceRegistry.invalidate();
+        ctl.midiChanged();
+      });
     }
     catch (final CoreMidiException e) {
       log.error("Warning: Cannot add Midi notification listener: ", e);
     }
   }
   
-  /** retrieve the list of active interfaces */
-  public List<MidiInterface> fetchInterfaces(final boolean doTransmitters, final boolean doReceivers) {
-    List<MidiInterface> interfaces = new ArrayList<MidiInterface>();
-    for (MidiDevice.Info minfo: CoreMidiDeviceProvider.getMidiDeviceInfo()) {
-      try {
-        if (minfo.getName().startsWith("Microsoft GS") || minfo.getName().startsWith("Microsoft MIDI Mapper")) {
-          continue;
-        }
-        MidiDevice mdev = MidiSystem.getMidiDevice(minfo);
-        if ((mdev instanceof Synthesizer) || (mdev instanceof Sequencer)) {
-          continue;  // ignore software synth & seq
+  /** set the parameter definitions, used to precompute fetch/store messages */
+  public void setParameters(final List<Parameter> params) {
+    synchronized(messageTables) {
+      parameters = new ArrayList<Parameter>(params);
+      Arrays.fill(messageTables, null);
+    }
+  }
+  
+  /** get the precomputed messages for a unit */
+  private SysexMessageTable getMessageTable(final byte unitId) {
+    synchronized(messageTables) {
+      SysexMessageTable table = messageTables[unitId];
+      if (table == null) {
+        table = new SysexMessageTable(unitId, parameters);
+        messageTables[unitId] = table;
+      }
+      return table;
+    }
+  }
+  
+  /** get the round trip time estimator for a unit */
+  private RttEstimator getRttEstimator(final byte unitId) {
+    synchronized(rttEstimators) {
+      RttEstimator rtt = rttEstimators[unitId];
+      if (rtt == null) {
+        rtt = new RttEstimator(TIMEOUT_MIN, TIMEOUT);
+        rttEstimators[unitId] = rtt;
+      }
+      return rtt;
+    }
+  }
+  
+  /** forget round trip times of all units (after the MIDI interface changed) */
+  private void resetRttEstimators() {
+    synchronized(rttEstimators) {
+      for (final RttEstimator rtt: rttEstimators) {
+        if (rtt != null) {
+          rtt.reset();
         }
-        if (doTransmitters && (mdev.getMaxTransmitters() != 0)) {
-          final MidiInterface mintf = new MidiInterface(mdev);
-          log.debug("found MIDI InPort ", mintf);
-          interfaces.add(mintf);
-        } else if (doReceivers && (mdev.getMaxReceivers() != 0)) {
-          final MidiInterface mintf = new MidiInterface(mdev);
-          log.debug("found MIDI OutPort ", mintf);
+      }
+    }
+  }
+  
+  /** retrieve the list of active interfaces (enumerated once, until refreshInterfaces()
+   * is called or the system notifies a change) */
+  public List<MidiInterface> fetchInterfaces(final boolean doTransmitters, final boolean doReceivers) {
+    final VirtualMatriarch virtual = getVirtualMatriarch();
+    if (virtual != null) {
+      deviceRegistry.addDevice(virtual);
+    }
+    final List<MidiInterface> interfaces = new ArrayList<MidiInterface>();
+    if (doTransmitters) {
+      interfaces.addAll(deviceRegistry.getInPorts());
+    }
+    if (doReceivers) {
+      for (final MidiInterface mintf: deviceRegistry.getOutPorts()) {
+        if (!interfaces.contains(mintf)) {
           interfaces.add(mintf);
         }
       }
-      catch (final MidiUnavailableException e) {
-        log.error("Warning: unable to fetch Midi interface ", minfo.getName(), ": ", e);
-      }
-      catch (final IllegalArgumentException e) {
-        // "Requested device not installed" might occur due to MidiSystem concurrency issue
-        log.error("Warning: unable to fetch Midi interface ", minfo.getName(), ": ", e);
-      }
     }
-    log.info("Found "+ interfaces.size() +" MIDI interfaces");
     return interfaces;
   }
+  
+  /** enumerate the MIDI interfaces again on the next fetchInterfaces() */
+  public void refreshInterfaces() {
+    deviceRegistry.invalidate();
+  }
+
+  /** get the emulated Matriarch configured by MatSwitch.midi.virtual, or null if not configured
+   * (same instance for in and out port, so that answers arrive at the virtual unit's transmitter) */
+  private synchronized VirtualMatriarch getVirtualMatriarch() {
+    if (virtualMatriarch == null) {
+      final List<Parameter> params;
+      synchronized(messageTables) {
+        params = parameters;
+      }
+      virtualMatriarch = VirtualMatriarch.fromProperties(params);
+    }
+    return virtualMatriarch;
+  }
 
   /** set the current MIDI input port */
   public void setInPort(final MidiInterface intf) {
@@ -128,6 +242,7 @@ public class MatSwitchMidi {
         currentInPort.close();
         currentInPort.getMidiDevice().close();
         currentInPort = null;
+        inPortName = null;
       }
       return;
     }
@@ -144,7 +259,9 @@ public class MatSwitchMidi {
         currentDevice.close();
       }
       currentInPort = newTx;
+      inPortName = intf.toString();
       newTx.setReceiver(sysexReceiver);
+      resetRttEstimators();
       log.info("Using MIDI InPort ", intf);
     }
     catch (final MidiUnavailableException e) {
@@ -159,6 +276,7 @@ public class MatSwitchMidi {
         currentOutPort.close();
         currentOutPort.getMidiDevice().close();
         currentOutPort = null;
+        outPortName = null;
       }
       return;
     }
@@ -175,6 +293,8 @@ public class MatSwitchMidi {
         currentDevice.close();
       }
       currentOutPort = newRx;
+      outPortName = intf.toString();
+      resetRttEstimators();
       log.info("Using MIDI OutPort ", intf);
     }
     catch (final MidiUnavailableException e) {
@@ -182,119 +302,429 @@ public class MatSwitchMidi {
     }
   }
     
-  /** retrieve list of Matriarch devices on a MIDI interface: sends a fetchParameterRequest
-   * to the broadcast id 7F and looks at all answers */
-  public List<MatriarchUnit> fetchUnits() {
-    List<MatriarchUnit> units = new ArrayList<MatriarchUnit>();
-    Set<Byte> unitIds = new HashSet<Byte>(10);
-    if ((currentInPort == null) || (currentOutPort == null)) {
-      log.debug("fetchUnits: InPort or OutPort not opened yet");
-      return units;
+  /** are both MIDI in and out ports open? */
+  public boolean isConnected() {
+    return (currentInPort != null) && (currentOutPort != null);
+  }
+  
+  /** find Matriarch devices on a MIDI interface: sends a fetchParameterRequest
+   * to the broadcast id 7F and collects the answers, see discoverUnitsAsync(Consumer) */
+  public CompletableFuture<List<MatriarchUnit>> discoverUnitsAsync() {
+    return discoverUnitsAsync(null);
+  }
+  
+  /** find Matriarch devices on a MIDI interface: sends a fetchParameterRequest
+   * to the broadcast id 7F and collects the answers. onUnitFound (if not null) is
+   * called for every unit as soon as it answers (in the receive thread). The future
+   * completes when the bus has been quiet for DISCOVERY_QUIET_FACTOR times the delay
+   * of the first answer (within the limits of the adaptive timeouts), or after TIMEOUT
+   * if no unit answers at all. */
+  public CompletableFuture<List<MatriarchUnit>> discoverUnitsAsync(final Consumer<MatriarchUnit> onUnitFound) {
+    final CompletableFuture<List<MatriarchUnit>> result = new CompletableFuture<List<MatriarchUnit>>();
+    final List<MatriarchUnit> units = new ArrayList<MatriarchUnit>();
+    if (!isConnected()) {
+      log.debug("discoverUnits: InPort or OutPort not opened yet");
+      result.complete(units);
+      return result;
     }
     log.info("Searching for Matriarch units on MIDI bus...");
-    purgeIncomingMessages();
-    sendMidi(createFetchParamRequest((byte)0, (byte)0x7f));
-    long timeoutTime = System.currentTimeMillis() + TIMEOUT;
-    do {
-      MatParameterAnswer answer = receiveParameterAnswer(0, TIMEOUT);
-      if (answer != null) {
-        byte unitId = answer.unitId;
-        if (unitId < 0) {
-          // workaround for Matriarch firmware 1.2.0 bug, does not send unitId
-          unitId = (byte)answer.paramValue;
+    final long startedAt = System.nanoTime();
+    final String intf = outPortName;
+    final Set<Byte> unitIds = new HashSet<Byte>(10);
+    final long[] sentAt = new long[1];
+    final long[] quietNanos = new long[1];
+    final List<ScheduledFuture<?>> finishTimer = new ArrayList<ScheduledFuture<?>>(1);
+    final Runnable finish = () -> {
+      synchronized(units) {
+        log.info("Found "+ units.size() +" Matriarch units on MIDI bus");
+        result.complete(new ArrayList<MatriarchUnit>(units));
+      }
+    };
+    final Consumer<MatParameterAnswer> listener = answer -> {
+      if (answer.paramId != 0) {
+        return;
+      }
+      byte unitId = answer.unitId;
+      if (unitId < 0) {
+        // workaround for Matriarch firmware 1.2.0 bug, does not send unitId
+        unitId = (byte)answer.paramValue;
+      }
+      final MatriarchUnit unit;
+      synchronized(units) {
+        if (result.isDone() || (sentAt[0] == 0) || !unitIds.add(unitId)) {
+          return;
         }
-        if (unitIds.add(unitId)) {
-          units.add(new MatriarchUnit(String.format("Matriarch unit %02X", unitId), unitId));
-          log.info(String.format("Found Matriarch unitId %02X", unitId));
+        unit = new MatriarchUnit(String.format("Matriarch unit %02X", unitId), unitId, answer.unitId >= 0);
+        units.add(unit);
+        log.info(String.format("Found Matriarch unitId %02X", unitId));
+        // (re-)start waiting for the bus to become quiet
+        final long now = System.nanoTime();
+        if (quietNanos[0] == 0) {
+          quietNanos[0] = Math.min(Math.max((now - sentAt[0]) * DISCOVERY_QUIET_FACTOR,
+                  TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MIN)), TimeUnit.MILLISECONDS.toNanos(TIMEOUT));
         }
+        final long finishIn = Math.min(quietNanos[0], sentAt[0] + TimeUnit.MILLISECONDS.toNanos(TIMEOUT) - now);
+        finishTimer.get(0).cancel(false);
+        finishTimer.set(0, scheduler.schedule(finish, finishIn, TimeUnit.NANOSECONDS));
+      }
+      if (onUnitFound != null) {
+        onUnitFound.accept(unit);
+      }
+    };
+    answerListeners.add(listener);
+    result.whenComplete((u, ex) -> {
+      answerListeners.remove(listener);
+      metrics.recordLatency(MidiMetrics.Operation.DISCOVER, intf, 0x7f, System.nanoTime() - startedAt);
+      synchronized(units) {
+        if (!finishTimer.isEmpty()) {
+          finishTimer.get(0).cancel(false);
+        }
+      }
+    });
+    scheduler.execute(() -> {
+      synchronized(units) {
+        finishTimer.add(scheduler.schedule(finish, TIMEOUT, TimeUnit.MILLISECONDS));
       }
-    } while (System.currentTimeMillis() < timeoutTime);
-    log.info("Found "+ units.size() +" Matriarch units on MIDI bus");
-    return units;
+      final MidiMessage msg = createFetchParamRequest((byte)0, (byte)0x7f);
+      if (msg != null) {
+        sendPacer.acquire(msg.getLength());
+      }
+      synchronized(units) {
+        sentAt[0] = System.nanoTime();
+      }
+      if (!transmitMidi(msg, (byte)0x7f)) {
+        log.error("discoverUnits: unable to send request");
+        result.complete(new ArrayList<MatriarchUnit>(0));
+      }
+    });
+    return result;
+  }
+  
+  /** are there fetch requests waiting for an answer? */
+  public boolean hasPendingFetches() {
+    synchronized(pendingFetches) {
+      return !pendingFetches.isEmpty();
+    }
   }
   
-  /** retrieve a parameter and wait for answer */
+  /** retrieve a parameter and wait for answer, returns -1 on failure */
   public int fetchParameter(final byte unitId, final byte paramId) {
-    if ((currentInPort == null) || (currentOutPort == null) || (unitId < 0)) {
-      log.error("fetchParameter: InPort or OutPort not opened yet");
-      return -1;
+    try {
+      return fetchParameterAsync(unitId, paramId).get();
     }
-    purgeIncomingMessages();
-    if (!sendMidi(createFetchParamRequest(paramId, unitId))) {
-      // error in sending Midi, tell Controller our connection is down.
-      ctl.midiFailed();
-    };
-    final MatParameterAnswer answer = receiveParameterAnswer(paramId, TIMEOUT);
-    if (answer == null) {
-      log.error("fetchParameter: No answer from Matriarch");
-      return -1;
+    catch (final ExecutionException e) {
+      log.error("fetchParameter: ", e.getCause().getMessage());
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    if (answer.paramId != paramId) {
-      log.error("fetchParameter: Answer for unexpected paramId ", answer.paramId);
-      return -1;
+    return -1;
+  }
+  
+  /** retrieve a parameter. The future completes with the value when the answer
+   * arrives, or exceptionally with a TimeoutException if the unit does not answer
+   * within its adaptive timeout, or a MidiUnavailableException if the request
+   * could not be sent. Cancelling the future withdraws the request. */
+  public CompletableFuture<Integer> fetchParameterAsync(final byte unitId, final byte paramId) {
+    final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+    if (!isConnected() || (unitId < 0)) {
+      future.completeExceptionally(new MidiUnavailableException("InPort or OutPort not opened yet"));
+      return future;
     }
-    return answer.paramValue;
+    final PendingFetch pf = new PendingFetch(unitId, paramId, future);
+    future.whenComplete((v, ex) -> removePendingFetch(pf));
+    scheduler.execute(() -> sendFetch(pf));
+    return future;
+  }
+  
+  /** retrieve a list of parameters, keeping up to FETCH_WINDOW requests in flight.
+   * Answers are matched to requests by paramId (and unitId, if the firmware sends it).
+   * The future completes with the values in the order of paramIds, -1 for every
+   * parameter without answer. Cancelling the future cancels all outstanding requests. */
+  public CompletableFuture<int[]> fetchParametersAsync(final byte unitId, final byte[] paramIds) {
+    return requestWindowed("fetchParameters", unitId, paramIds.length,
+            idx -> fetchParameterAsync(unitId, paramIds[idx]));
+  }
+  
+  /** store a list of parameters and read each one back, keeping up to FETCH_WINDOW
+   * store/fetch pairs in flight. Each store is immediately followed by a fetch of the
+   * same parameter, without waiting for the previous pair's answer.
+   * The future completes with the values read back in the order of paramIds, -1 for
+   * every parameter without answer; compare them with values to verify the store. */
+  public CompletableFuture<int[]> storeParametersVerifiedAsync(final byte unitId, final byte[] paramIds, final int[] values) {
+    return requestWindowed("storeParametersVerified", unitId, paramIds.length, idx -> {
+      // both are queued in the sender thread in this order, so the fetch always follows the store
+      storeParameterAsync(unitId, paramIds[idx], values[idx]);
+      return fetchParameterAsync(unitId, paramIds[idx]);
+    });
+  }
+  
+  /** run numRequests requests to a unit, keeping up to FETCH_WINDOW of them in flight.
+   * The future completes with the results in request order, -1 for every failed request.
+   * Cancelling the future cancels all outstanding requests. */
+  private CompletableFuture<int[]> requestWindowed(final String name, final byte unitId, final int numRequests,
+          final IntFunction<CompletableFuture<Integer>> startRequest) {
+    final int[] values = new int[numRequests];
+    Arrays.fill(values, -1);
+    final CompletableFuture<int[]> result = new CompletableFuture<int[]>();
+    if (!isConnected() || (unitId < 0)) {
+      log.error(name, ": InPort or OutPort not opened yet");
+      result.complete(values);
+      return result;
+    }
+    if (numRequests == 0) {
+      result.complete(values);
+      return result;
+    }
+    final List<CompletableFuture<Integer>> requests = new ArrayList<CompletableFuture<Integer>>(numRequests);
+    final AtomicInteger remaining = new AtomicInteger(numRequests);
+    final Runnable sendNext = new Runnable() {
+      @Override public void run() {
+        final int idx;
+        final CompletableFuture<Integer> request;
+        synchronized(requests) {
+          idx = requests.size();
+          if ((idx >= numRequests) || result.isDone()) {
+            return;
+          }
+          request = startRequest.apply(idx);
+          requests.add(request);
+        }
+        request.whenComplete((val, ex) -> {
+          if (ex == null) {
+            values[idx] = val;
+          } else if (!result.isDone()) {
+            log.error(name, ": ", ex.getMessage());
+          }
+          if (remaining.decrementAndGet() == 0) {
+            // log values, not the estimator: its state would be read when the text is built
+            final RttEstimator rtt = getRttEstimator(unitId);
+            log.debug(name, ": unit ", unitId, " round trip ", TimeUnit.NANOSECONDS.toMicros(rtt.getSrttNanos()),
+                    " us, timeout ", TimeUnit.NANOSECONDS.toMillis(rtt.getTimeoutNanos()), " ms");
+            result.complete(values);
+          } else {
+            run();
+          }
+        });
+      }
+    };
+    result.whenComplete((v, ex) -> {
+      if (result.isCancelled()) {
+        synchronized(requests) {
+          for (final CompletableFuture<Integer> request: requests) {
+            request.cancel(false);
+          }
+        }
+      }
+    });
+    for (int i = 0; i < Math.max(1, FETCH_WINDOW); i++) {
+      sendNext.run();
+    }
+    return result;
   }
   
   /** store a parameter to Matriarch */
   public boolean storeParameter(final byte unitId, final byte paramId, final int value) {
-    if ((currentInPort == null) || (currentOutPort == null) || (unitId < 0)) {
-      log.error("fetchParameter: InPort or OutPort not opened yet");
-      return false;
+    return storeParameterAsync(unitId, paramId, value).join();
+  }
+  
+  /** store a parameter to Matriarch. The future completes with true as soon as
+   * the message has been sent, or with false if that was not possible. */
+  public CompletableFuture<Boolean> storeParameterAsync(final byte unitId, final byte paramId, final int value) {
+    final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+    if (!isConnected() || (unitId < 0)) {
+      log.error("storeParameter: InPort or OutPort not opened yet");
+      future.complete(false);
+      return future;
+    }
+    MidiMessage storeMsg = getMessageTable(unitId).getStoreMessage(paramId, value);
+    if (storeMsg == null) {
+      storeMsg = createStoreParamRequest(unitId, paramId, value);
+    }
+    if (storeMsg == null) {
+      future.complete(false);
+      return future;
+    }
+    final MidiMessage msg = storeMsg;
+    final long startedAt = System.nanoTime();
+    scheduler.execute(() -> {
+      if (future.isDone()) {
+        return; // cancelled before sending
+      }
+      if (sendMidi(msg, unitId)) {
+        metrics.recordLatency(MidiMetrics.Operation.STORE, outPortName, unitId, System.nanoTime() - startedAt);
+        future.complete(true);
+      } else {
+        // error in sending Midi, tell Controller our connection is down.
+        future.complete(false);
+        ctl.midiFailed();
+      }
+    });
+    return future;
+  }
+  
+  /** let future complete exceptionally with a TimeoutException if it is not done within timeoutMillis */
+  public <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeoutMillis) {
+    final ScheduledFuture<?> timer = scheduler.schedule(() -> {
+      future.completeExceptionally(new TimeoutException("Timeout after "+ timeoutMillis +" ms"));
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+    future.whenComplete((v, ex) -> timer.cancel(false));
+    return future;
+  }
+  
+  /** get a future that completes after the given delay */
+  public CompletableFuture<Void> delay(final long millis) {
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    scheduler.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+    return future;
+  }
+  
+  /** send a pending fetch request and start its timeout (runs in scheduler thread) */
+  private void sendFetch(final PendingFetch pf) {
+    if (pf.future.isDone()) {
+      return; // cancelled before sending
+    }
+    final MidiMessage msg = createFetchParamRequest(getMessageTable(pf.unitId), pf.paramId);
+    final RttEstimator rtt = getRttEstimator(pf.unitId);
+    if (msg != null) {
+      sendPacer.acquire(msg.getLength());
     }
-    final MidiMessage msg = createStoreParamRequest(unitId, paramId, value);
-    if (msg == null) {
-      return false;
+    pf.retransmission = rtt.isRetransmission(pf.paramId);
+    pf.sentAt = System.nanoTime();
+    synchronized(pendingFetches) {
+      pendingFetches.add(pf);
     }
-    if (!sendMidi(msg)) {
+    if (!transmitMidi(msg, pf.unitId)) {
+      pf.future.completeExceptionally(new MidiUnavailableException("Unable to send fetch request"));
       // error in sending Midi, tell Controller our connection is down.
       ctl.midiFailed();
-      return false;
+      return;
     }
-    return true;
+    pf.timeout = scheduler.schedule(() -> {
+      if (pf.future.completeExceptionally(new TimeoutException("No answer from Matriarch for paramId "+ pf.paramId))) {
+        rtt.timedOut(pf.paramId);
+        metrics.count(MidiMetrics.Counter.TIMEOUT, outPortName, pf.unitId);
+      }
+    }, rtt.getTimeoutNanos(), TimeUnit.NANOSECONDS);
   }
   
-  /** purge the queue of incoming messages */
-  private void purgeIncomingMessages() {
-    synchronized(incomingMessages) {
-      incomingMessages.clear();
+  /** remove a (completed or cancelled) fetch request from pendingFetches */
+  private void removePendingFetch(final PendingFetch pf) {
+    synchronized(pendingFetches) {
+      pendingFetches.remove(pf);
+    }
+    final ScheduledFuture<?> timeout = pf.timeout;
+    if (timeout != null) {
+      timeout.cancel(false);
     }
   }
   
-  /** wait for an incoming parameter message from Matriarch */
-  private MatParameterAnswer receiveParameterAnswer(final int paramId, long timeout) {
-    long timeoutTime = System.currentTimeMillis() + timeout;
-    synchronized(incomingMessages) {
-      do {
-        SysexMessage msg = incomingMessages.poll();
-        long timeLeft = timeoutTime - System.currentTimeMillis();
-        if (msg== null) {
-          if (timeLeft > 0) {
-            try {
-              incomingMessages.wait(timeLeft);
-            }
-            catch (final InterruptedException ignore) {}
-          }
-        } else {
-          try {
-            MatParameterAnswer ans = new MatParameterAnswer(msg);
-            if (ans.paramId == paramId) {
-              return ans;
-            }
-          }
-          catch (final ParseException e) {
-            log.debug("Unable to parse Sysex message: "+ e);
-          }
+  /** hand an incoming answer to the oldest matching fetch request and to all answer listeners */
+  private void dispatchAnswer(final MatParameterAnswer answer) {
+    final PendingFetch match = takePendingFetch(answer);
+    if (match != null) {
+      final long now = System.nanoTime();
+      if (!match.retransmission) {
+        // Karn's rule: the answer to a retransmission may be a late answer to the earlier request
+        getRttEstimator(match.unitId).addSample(now - match.sentAt);
+      }
+      metrics.recordLatency(MidiMetrics.Operation.FETCH, outPortName, match.unitId, now - match.createdAt);
+      match.future.complete(answer.paramValue);
+    }
+    for (final Consumer<MatParameterAnswer> listener: answerListeners) {
+      listener.accept(answer);
+    }
+  }
+  
+  /** remove and return the oldest fetch request the answer matches, null if none */
+  private PendingFetch takePendingFetch(final MatParameterAnswer answer) {
+    synchronized(pendingFetches) {
+      for (final PendingFetch pf: pendingFetches) {
+        if ((pf.paramId == answer.paramId) && ((answer.unitId < 0) || (answer.unitId == pf.unitId))) {
+          pendingFetches.remove(pf);
+          return pf;
         }
-      } while (System.currentTimeMillis() < timeoutTime);
+      }
     }
     return null;
   }
   
-  /** send a "fetch parameter" message:
+  /** run method for the receive thread: sole consumer of incomingMessages and injectedMessages */
+  private void receiveRunner() {
+    final byte[] receivedMessage = new byte[SysexRingBuffer.SLOT_SIZE];
+    long reportedDropped = 0;
+    while (true) {
+      final int polled = incomingMessages.poll(receivedMessage, System.nanoTime() + RECEIVE_IDLE_NANOS,
+              injectedMessages);
+      if (polled < 0) {
+        final long dropped = incomingMessages.getNumOverflow() + incomingMessages.getNumOversize()
+                + inputFilter.getNumDropped();
+        if (dropped != reportedDropped) {
+          log.debug("Dropped incoming MIDI messages so far: ", incomingMessages.getNumOverflow(),
+                  " (buffer full), ", incomingMessages.getNumOversize(), " (too long), ",
+                  inputFilter.getNumRealtime(), " (realtime), ", inputFilter.getNumOther(), " (not Sysex), ",
+                  inputFilter.getNumForeign(), " (Sysex not from Matriarch)");
+          reportedDropped = dropped;
+        }
+        continue;
+      }
+      final boolean injected = polled >= SysexRingBuffer.FROM_SECONDARY;
+      final int length = injected ? polled - SysexRingBuffer.FROM_SECONDARY : polled;
+      if (log.isEnabled(LogType.LOG_IO)) {
+        log.iohex("Receive MIDI ", Arrays.copyOf(receivedMessage, length));
+      }
+      try {
+        final MatParameterAnswer answer = new MatParameterAnswer(receivedMessage, length);
+        metrics.countMessage(false, inPortName, answer.unitId, length);
+        if (!injected) {
+          dispatchAnswer(answer); // replayed values must not complete real requests or discover units
+        }
+      }
+      catch (final ParseException e) {
+        metrics.countMessage(false, inPortName, MidiMetrics.UNKNOWN_UNIT, length);
+        metrics.count(MidiMetrics.Counter.PARSE_FAILURE, inPortName, MidiMetrics.UNKNOWN_UNIT);
+        log.debug("Unable to parse Sysex message: ", e);
+      }
+      catch (final RuntimeException e) {
+        log.error("Error while handling incoming MIDI message: ", e);
+      }
+    }
+  }
+  
+  /** feed a message into the receive path as if it had been received (e.g. replay of a capture).
+   * It bypasses the input filter and the capture recorder and uses its own ring buffer, so the
+   * driver callback stays the only producer of incomingMessages. Injected answers are parsed, logged
+   * and counted in the metrics, but never complete fetch requests or reach the unit discovery.
+   * Returns false if the buffer is full, try again later in that case. */
+  public boolean injectIncoming(final byte[] data, final int length) {
+    if (length > SysexRingBuffer.SLOT_SIZE) {
+      return true; // not a Matriarch message, would be dropped by the receive path anyway
+    }
+    synchronized(injectedMessages) { // single producer, even if several replays run
+      return !injectedMessages.isFull() && injectedMessages.offer(data, length);
+    }
+  }
+  
+  /** get the metrics of MIDI operations */
+  public MidiMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /** count parameters that are requested again after a failure (for metrics) */
+  public void countRetries(final byte unitId, final int numParams) {
+    metrics.add(MidiMetrics.Counter.RETRY, outPortName, unitId, numParams);
+  }
+  
+  /** get a precomputed "fetch parameter" message, or create it if paramId is unknown */
+  private MidiMessage createFetchParamRequest(final SysexMessageTable table, final byte paramId) {
+    final MidiMessage msg = table.getFetchMessage(paramId);
+    return (msg != null) ? msg : createFetchParamRequest(paramId, table.getUnitId());
+  }
+  
+  /** create a "fetch parameter" message:
    * F0 04 17 3E [Parameter ID] 00 00 00 00 00 00 00 00 00 00 [Unit ID] F7 */
   public MidiMessage createFetchParamRequest(final byte paramId, final byte deviceId) {
-    byte[] fetchParam = new byte[] { (byte)0xf0, 0x04, 0x17, 0x3e, (byte)paramId, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte)deviceId, (byte)0xf7};
+    final byte[] fetchParam = SysexEncoder.fetchTemplate(paramId, deviceId);
     try {
       return new SysexMessage(fetchParam, fetchParam.length);
     }
@@ -307,9 +737,7 @@ public class MatSwitchMidi {
   /** create a "store parameter" message:
    * F0 04 17 23 [Parameter ID], [value MSB], [value LSB], 00 00 00 00 00 00 00 00 [Unit ID] F7 */
   public MidiMessage createStoreParamRequest(final byte deviceId, final byte paramId, final int value) {
-    byte valMsb = (byte)(value / 128);
-    byte valLsb = (byte)(value % 128);
-    byte[] storeParam = new byte[] { (byte)0xf0, 0x04, 0x17, 0x23, (byte)paramId, valMsb, valLsb, 0,0,0,0,0,0,0,0, (byte)deviceId, (byte)0xf7};
+    final byte[] storeParam = SysexEncoder.storeTemplate(paramId, value, deviceId);
     try {
       return new SysexMessage(storeParam, storeParam.length);
     }
@@ -319,12 +747,37 @@ public class MatSwitchMidi {
     }
   }
   
-  /** send a message to MIDI out port */
-  private boolean sendMidi(final MidiMessage msg) {
+  /** start a new batch of outgoing messages (for pacing statistics) */
+  public void beginSendBatch() {
+    sendPacer.beginBatch();
+  }
+  
+  /** get statistics about outgoing messages since beginSendBatch() */
+  public String getSendBatchStats() {
+    return sendPacer.getBatchStats();
+  }
+  
+  /** send a message for a unit to MIDI out port (paced by sendPacer) */
+  private boolean sendMidi(final MidiMessage msg, final byte unitId) {
     if ((currentOutPort != null) && (msg != null)) {
-      log.iohex("Sending MIDI ", msg.getMessage());
+      sendPacer.acquire(msg.getLength());
+    }
+    return transmitMidi(msg, unitId);
+  }
+  
+  /** send a message for a unit to MIDI out port immediately (caller is responsible for pacing) */
+  private boolean transmitMidi(final MidiMessage msg, final byte unitId) {
+    final MidiDeviceReceiver outPort = currentOutPort;
+    if ((outPort != null) && (msg != null)) {
+      if (capture != null) {
+        capture.record(MidiCaptureRecorder.DIRECTION_OUT, msg.getMessage(), msg.getLength(), System.nanoTime());
+      }
+      if (log.isEnabled(LogType.LOG_IO)) {
+        log.iohex("Sending MIDI ", msg.getMessage());
+      }
       try {
-        currentOutPort.send(msg, -1);
+        outPort.send(msg, -1);
+        metrics.countMessage(true, outPortName, unitId, msg.getLength());
         return true;
       }
       catch (final IllegalStateException e) {
@@ -334,7 +787,32 @@ public class MatSwitchMidi {
     return false;
   }
   
-  /** helper class to receive SysexMessages (passes it on to  incomingMessages Queue) */
+  /** a fetch request waiting for its answer */
+  private static final class PendingFetch {
+    /** unit the request was sent to */
+    private final byte unitId;
+    /** requested parameter */
+    private final byte paramId;
+    /** completed with the parameter value */
+    private final CompletableFuture<Integer> future;
+    /** time the request was made [System.nanoTime()] */
+    private final long createdAt = System.nanoTime();
+    /** time the request was sent [System.nanoTime()] */
+    private volatile long sentAt;
+    /** did the previous request for this parameter time out? (no round trip sample then) */
+    private volatile boolean retransmission;
+    /** scheduled timeout, cancelled when the answer arrives */
+    private volatile ScheduledFuture<?> timeout;
+    
+    /** constructor */
+    private PendingFetch(final byte unitId, final byte paramId, final CompletableFuture<Integer> future) {
+      this.unitId = unitId;
+      this.paramId = paramId;
+      this.future = future;
+    }
+  }
+  
+  /** helper class to receive SysexMessages (passes it on to incomingMessages ring buffer) */
   private final class SysexReceiver implements Receiver {
     /** empty constructor */
     private SysexReceiver() {
@@ -343,12 +821,14 @@ public class MatSwitchMidi {
     /** {@inheritDoc} */
     @Override
     public void send(final MidiMessage message, final long timeStamp) {
-      log.iohex("Receive MIDI ", message.getMessage());
-      if (message instanceof SysexMessage) {
-        synchronized(incomingMessages) {
-          incomingMessages.add((SysexMessage)message);
-          incomingMessages.notify();
-        }
+      // runs on the driver's callback thread: only filter and copy the message, logging is done by the consumer
+      if (capture != null) {
+        // every message as received, before filter and ring buffer (getMessage() returns a copy)
+        capture.record(MidiCaptureRecorder.DIRECTION_IN, message.getMessage(), message.getLength(), System.nanoTime());
+      }
+      final byte[] data = inputFilter.accept(message);
+      if (data != null) {
+        incomingMessages.offer(data, message.getLength());
       }
     }
 
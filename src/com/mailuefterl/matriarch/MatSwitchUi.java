@@ -42,6 +42,7 @@ import java.util.Queue;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -70,11 +71,15 @@ import com.mailuefterl.matriarch.ui.ConfirmOverwriteFileChooser;
 import com.mailuefterl.matriarch.ui.LogPanel;
 import com.mailuefterl.matriarch.ui.RangedNumberInputField;
 import com.mailuefterl.matriarch.ui.TranslucentPanel;
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
 
 /**
  * User interface for MatriarchSwitch application.
  */
 public class MatSwitchUi {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
 
   /** controller instance */
   private final MatSwitchController ctl;
@@ -291,11 +296,32 @@ public class MatSwitchUi {
     final JMenu mTools = new JMenu("Tools");
     mbMenu.add(mTools);
     final JMenuItem miRefreshMidi = new JMenuItem("Refresh list of MIDI interfaces");
-    miRefreshMidi.addActionListener(l -> fetchMidiInterfaces());
+    miRefreshMidi.addActionListener(l -> refreshMidiInterfaces());
     mTools.add(miRefreshMidi);
+    final JMenuItem miProbeMidi = new JMenuItem("Find MIDI ports connected to Matriarch");
+    miProbeMidi.addActionListener(l -> probeMidiPorts());
+    mTools.add(miProbeMidi);
+    final JMenuItem miRetrieveAllUnits = new JMenuItem("Retrieve parameters from all units");
+    miRetrieveAllUnits.addActionListener(l -> retrieveParameters(true));
+    mTools.add(miRetrieveAllUnits);
+    final JMenuItem miClearCache = new JMenuItem("Forget cached parameter values");
+    miClearCache.addActionListener(l -> ctl.clearStateCache());
+    mTools.add(miClearCache);
+    final JMenuItem miReplayCapture = new JMenuItem("Replay MIDI capture file");
+    miReplayCapture.addActionListener(l -> replayMidiCapture());
+    mTools.add(miReplayCapture);
+    final JMenuItem miSaveMetrics = new JMenuItem("Save MIDI statistics to file");
+    miSaveMetrics.addActionListener(l -> saveMidiMetrics());
+    mTools.add(miSaveMetrics);
     final JMenuItem miResetDefault = new JMenuItem("Reset all parameters to default");
     miResetDefault.addActionListener(l -> resetParamsDefault());
     mTools.add(miResetDefault);
+    final JCheckBoxMenuItem miVerifyStores = new JCheckBoxMenuItem("Verify stored parameters", ctl.isVerifyStores());
+    miVerifyStores.addActionListener(l -> ctl.setVerifyStores(miVerifyStores.isSelected()));
+    mTools.add(miVerifyStores);
+    final JCheckBoxMenuItem miLiveEdit = new JCheckBoxMenuItem("Live edit (store every change immediately)", ctl.isLiveEdit());
+    miLiveEdit.addActionListener(l -> ctl.setLiveEdit(miLiveEdit.isSelected()));
+    mTools.add(miLiveEdit);
     
     // Help menu
     final JMenu mHelp = new JMenu("Help");
@@ -313,6 +339,7 @@ public class MatSwitchUi {
       backgroundWork(() -> {
         ctl.setMidiOutPort(midiInterface);
         fetchMidiUnits();
+        SwingUtilities.invokeLater(() -> hideWait());
       });
     });
     
@@ -322,14 +349,18 @@ public class MatSwitchUi {
       backgroundWork(() -> {
         ctl.setMidiInPort(midiInterface);
         fetchMidiUnits();
+        SwingUtilities.invokeLater(() -> hideWait());
       });
     });
     
     cbMidiDevice.addActionListener(l -> {
       ctl.setMatUnit(getSelectedItem(cbMidiDevice));
+      if (getSelectedItem(cbParameter) != null) {
+        reloadCurrentParameter(); // may have changed to the unit's cached value
+      }
     });
     
-    bRefreshMidi.addActionListener(l -> fetchMidiInterfaces());
+    bRefreshMidi.addActionListener(l -> refreshMidiInterfaces());
     
     cbParameterGroup.addActionListener(l -> {
       ParameterGroup currentGroup = getSelectedItem(cbParameterGroup);
@@ -356,7 +387,7 @@ public class MatSwitchUi {
     cbParameterValue.addActionListener(l-> {
       Parameter currentParam = getSelectedItem(cbParameter);
       ParameterChoiceValue currentValue = getSelectedItem(cbParameterValue);
-      currentParam.setCurrentValue(currentValue);
+      ctl.editParameter(currentParam, currentValue);
     });
     
     tfParameterValue.addActionListener(l -> {
@@ -371,12 +402,12 @@ public class MatSwitchUi {
         iVal = Integer.parseInt(sVal);
       }
       catch (final NumberFormatException ignore) {}
-      currentParam.setCurrentValue(currentParam.findValue(iVal));      
+      ctl.editParameter(currentParam, currentParam.findValue(iVal));
     });
     
     setComboboxChoices(ParameterGroup.getAllGroups(), cbParameterGroup, "");
     
-    bRetrieve.addActionListener(l -> retrieveParameters());    
+    bRetrieve.addActionListener(l -> retrieveParameters(false));    
     bStore.addActionListener(l -> storeParameters());
   }
   
@@ -415,6 +446,56 @@ public class MatSwitchUi {
     });
   }
   
+  /** refresh button/menu: enumerate MIDI interfaces again and update comboboxes */
+  private void refreshMidiInterfaces() {
+    ctl.refreshMidiInterfaces();
+    fetchMidiInterfaces();
+  }
+  
+  /** probe all MIDI port pairs for Matriarch units and select the first pair found (called in EDT) */
+  private void probeMidiPorts() {
+    showWait();
+    backgroundWork(() -> {
+      ctl.probeMidiPortsAsync().whenComplete((results, ex) -> SwingUtilities.invokeLater(() -> {
+        hideWait();
+        if ((results == null) || results.isEmpty()) {
+          JOptionPane.showMessageDialog(
+                  mainWindow,
+                  "No Matriarch answered on any combination of MIDI ports.",
+                  "Finding MIDI ports",
+                  JOptionPane.WARNING_MESSAGE);
+          return;
+        }
+        final StringBuilder sb = new StringBuilder("Matriarch units found on:");
+        for (final PortProber.Result result: results) {
+          sb.append("\n        ");
+          sb.append(result.toString());
+        }
+        final PortProber.Result first = results.get(0);
+        sb.append("\nSelecting OutPort ").append(first.outPort).append(" and InPort ").append(first.inPort).append('.');
+        JOptionPane.showMessageDialog(
+                mainWindow,
+                sb.toString(),
+                "Finding MIDI ports",
+                JOptionPane.INFORMATION_MESSAGE);
+        selectMidiInterface(cbMidiOutPort, first.outPort);
+        selectMidiInterface(cbMidiInPort, first.inPort);
+      }));
+    });
+  }
+  
+  /** select a MIDI port in a combobox (by name, the combobox may hold other instances after a refresh) */
+  private static void selectMidiInterface(final JComboBox<MidiInterface> cb, final MidiInterface intf) {
+    for (int i = 0; i < cb.getItemCount(); i++) {
+      if (cb.getItemAt(i).toString().equals(intf.toString())) {
+        if (cb.getSelectedIndex() != i) {
+          cb.setSelectedIndex(i);
+        }
+        return;
+      }
+    }
+  }
+  
   /** Controller told us that our Midi connection failed. Re-fetch interfaces. */
   public void midiFailed() {
     fetchMidiInterfaces();
@@ -425,21 +506,80 @@ public class MatSwitchUi {
     fetchMidiInterfaces();
   }
 
-  /** find available Matriarch units and populate combobox */
+  /** start searching for Matriarch units (does not block, units are passed to showUnits() as they are found) */
   private void fetchMidiUnits() {
-    List<MatriarchUnit> availableDevices = ctl.fetchMidiUnits();
+    ctl.discoverUnitsAsync().thenAccept(units -> showUnits(units));
+  }
+  
+  /** Controller told us that the list of Matriarch units changed: update combobox,
+   * preferring a physical unit over the simulation. A selected physical unit that is no
+   * longer in the list stays selected (switching to the simulation must be the user's choice). */
+  public void showUnits(final List<MatriarchUnit> units) {
+    SwingUtilities.invokeLater(() -> {
+      final MatriarchUnit previous = getSelectedItem(cbMidiDevice);
+      List<MatriarchUnit> choices = units;
+      String preferredSelection = "Matriarch";
+      if ((previous != null) && !previous.isPseudo() && !units.contains(previous)) {
+        if (findUnit(units, previous.getUnitId()) != null) {
+          preferredSelection = previous.toString(); // same unit, found again
+        }
+        else {
+          log.error(previous, " does not answer any more, keeping it selected");
+          choices = new ArrayList<MatriarchUnit>(units);
+          choices.add(0, previous);
+        }
+      }
+      setComboboxChoices(choices, cbMidiDevice, preferredSelection);
+      final MatriarchUnit selected = getSelectedItem(cbMidiDevice);
+      if ((selected == null) || selected.isPseudo()) {
+        for (final MatriarchUnit unit: units) {
+          if (!unit.isPseudo()) {
+            cbMidiDevice.setSelectedItem(unit);
+            break;
+          }
+        }
+      }
+      revalidateState();
+    });
+  }
+  
+  /** find the unit with the given unitId in a list, null if none */
+  private static MatriarchUnit findUnit(final List<MatriarchUnit> units, final byte unitId) {
+    for (final MatriarchUnit unit: units) {
+      if (!unit.isPseudo() && (unit.getUnitId() == unitId)) {
+        return unit;
+      }
+    }
+    return null;
+  }
+  
+  /** re-fetch values shown from the state file of an earlier run in the background (called in EDT) */
+  private void revalidateState() {
+    if (!ctl.needsRevalidation()) {
+      return;
+    }
+    backgroundWork(() -> {
+      ctl.revalidateAsync().whenComplete((success, ex) -> {
+        SwingUtilities.invokeLater(() -> reloadCurrentParameter());
+      });
+    });
+  }
+  
+  /** show where the displayed values come from in the window title (null: current values of the unit) */
+  public void showStateInfo(final String info) {
     SwingUtilities.invokeLater(() -> {
-      cbMidiDevice.removeAllItems();
-      setComboboxChoices(availableDevices, cbMidiDevice, "Matriarch");
-      hideWait();
+      mainWindow.setTitle((info == null) ? "MatriarchSwitch" : "MatriarchSwitch - "+ info);
+      if (getSelectedItem(cbParameter) != null) {
+        reloadCurrentParameter();
+      }
     });
   }
   
-  /** Retrieve Button has been pressed (called in EDT) */
-  private void retrieveParameters() {
+  /** Retrieve Button has been pressed (called in EDT). allUnits: retrieve from all units on the bus at once */
+  private void retrieveParameters(final boolean allUnits) {
     final List<Parameter> changedParams = ctl.getChangedParameters();
     if (changedParams.size() == 0) {
-      reallyRetrieveParameters();
+      reallyRetrieveParameters(allUnits);
     } else {
       final StringBuilder sb = new StringBuilder("The following Parameters have been changed locally:");
       for (final Parameter param: changedParams) {
@@ -455,19 +595,24 @@ public class MatSwitchUi {
               JOptionPane.OK_CANCEL_OPTION,
               JOptionPane.QUESTION_MESSAGE
               ) == JOptionPane.OK_OPTION) {
-        reallyRetrieveParameters();
+        reallyRetrieveParameters(allUnits);
       }
     }
   }
 
   /** Do the real work to retrieve parameters (called in EDT) */
-  private void reallyRetrieveParameters() {
+  private void reallyRetrieveParameters(final boolean allUnits) {
     showWait();
     backgroundWork(() -> {
-      ctl.retrieveAllParameters();
-      SwingUtilities.invokeLater(() -> {
-        reloadCurrentParameter();
-        hideWait();
+      (allUnits ? ctl.retrieveAllUnitsAsync() : ctl.retrieveAllAsync()).whenComplete((success, ex) -> {
+        final List<Parameter> failedParams = ctl.getFailedParameters();
+        SwingUtilities.invokeLater(() -> {
+          reloadCurrentParameter();
+          hideWait();
+          if (!Boolean.TRUE.equals(success)) {
+            showFailedParameters("Retrieving Parameters from Matriarch", "retrieved", failedParams);
+          }
+        });
       });
     });
   }
@@ -504,11 +649,33 @@ public class MatSwitchUi {
   private void reallyStoreParameters() {
     showWait();
     backgroundWork(() -> {
-      ctl.storeParameters();
-      SwingUtilities.invokeLater(() -> hideWait());
+      final boolean success = ctl.storeParameters();
+      final List<Parameter> failedParams = ctl.getFailedParameters();
+      SwingUtilities.invokeLater(() -> {
+        hideWait();
+        if (!success) {
+          showFailedParameters("Storing Parameters to Matriarch", "stored", failedParams);
+        }
+      });
     });
   }
   
+  /** tell the user which parameters could not be retrieved/stored (called in EDT) */
+  private void showFailedParameters(final String title, final String action, final List<Parameter> failedParams) {
+    if (failedParams.isEmpty()) {
+      JOptionPane.showMessageDialog(mainWindow, "Not all Parameters could be "+ action +", see log for details.",
+              title, JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+    final StringBuilder sb = new StringBuilder("The following Parameters could not be ");
+    sb.append(action).append(':');
+    for (final Parameter param: failedParams) {
+      sb.append("\n        ");
+      sb.append(param.toString());
+    }
+    JOptionPane.showMessageDialog(mainWindow, sb.toString(), title, JOptionPane.WARNING_MESSAGE);
+  }
+  
   /** export parameters to sysex file */
   private void exportSysex(final boolean allParameters) {
     fcExport.setDialogTitle("Export "+ (allParameters ? "all" : "changed") +" Parameters");
@@ -549,6 +716,32 @@ public class MatSwitchUi {
     }
   }
   
+  /** feed received messages from a MIDI capture file into the MIDI handler (result goes to the log) */
+  private void replayMidiCapture() {
+    fcExport.setDialogTitle("Replay MIDI capture");
+    fcExport.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    fcExport.resetChoosableFileFilters();
+    fcExport.addChoosableFileFilter(new FileNameExtensionFilter("MIDI capture files", "capture"));
+    fcExport.setAcceptAllFileFilterUsed(true);
+    if (fcExport.showOpenDialog(mainWindow) == JFileChooser.APPROVE_OPTION) {
+      ctl.replayMidiCapture(fcExport.getSelectedFile());
+    }
+  }
+  
+  /** write MIDI latencies and counters to a text file */
+  private void saveMidiMetrics() {
+    fcExport.setDialogTitle("Save MIDI statistics");
+    fcExport.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    fcExport.resetChoosableFileFilters();
+    fcExport.addChoosableFileFilter(new FileNameExtensionFilter("Text files", "txt"));
+    fcExport.setAcceptAllFileFilterUsed(true);
+    fcExport.setSelectedFile(new File("midi-statistics.txt"));
+    if (fcExport.showSaveDialog(mainWindow) == JFileChooser.APPROVE_OPTION) {
+      final File metricsFile = fcExport.getSelectedFile();
+      backgroundWork(() -> ctl.saveMidiMetrics(metricsFile));
+    }
+  }
+  
   /** reset all parameters to their default value */
   private void resetParamsDefault() {
     ctl.resetParamsDefault();
@@ -566,6 +759,8 @@ public class MatSwitchUi {
     sb.append(ctl.getParametersVersion());
     sb.append("\nJava Runtime version: ");
     sb.append(System.getProperty("java.version"));
+    sb.append("\nLogging: ");
+    sb.append(LogManager.getLogManager().getStatus());
     JOptionPane.showMessageDialog(
             mainWindow,
             sb.toString(),
@@ -26,10 +26,15 @@ package com.mailuefterl.matriarch;
  * #L%
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+import com.mailuefterl.matriarch.util.FileLogSink;
+import com.mailuefterl.matriarch.util.ILogger.LogType;
+import com.mailuefterl.matriarch.util.LogManager;
+
 /**
  * Main class for MatriarchSwitch, a standalone utility to manipulate global
  * parameters in the Moog Matriarch Synthesizer.
@@ -40,12 +45,35 @@ public abstract class MatriarchSwitch {
   */
   public static void main(String[] args) {
     loadProperties();
+    configureLogging();
     MatSwitchController ctl = new MatSwitchController();
     ctl.setUiHandler(new MatSwitchUi(ctl));
     ctl.setMidiHandler(new MatSwitchMidi(ctl));
     ctl.start();
   }
   
+  /** set log level, log buffer sizes, dispatch interval and log file from properties */
+  private static void configureLogging() {
+    final LogManager logMgr = LogManager.getLogManager();
+    logMgr.setDefaultLevel(MatProperty.LOG_LEVEL.getProperty("debug"));
+    logMgr.setCapacity(LogType.LOG_ERROR, MatProperty.LOG_CAPACITY_ERROR.getProperty(1000));
+    logMgr.setCapacity(LogType.LOG_INFO, MatProperty.LOG_CAPACITY_INFO.getProperty(LogManager.DEFAULT_CAPACITY));
+    logMgr.setCapacity(LogType.LOG_DEBUG, MatProperty.LOG_CAPACITY_DEBUG.getProperty(LogManager.DEFAULT_CAPACITY));
+    logMgr.setCapacity(LogType.LOG_IO, MatProperty.LOG_CAPACITY_IO.getProperty(10000));
+    logMgr.setDispatchInterval(MatProperty.LOG_DISPATCH_INTERVAL.getProperty(50L));
+    final String logFile = MatProperty.LOG_FILE.getProperty("");
+    if (!logFile.isEmpty()) {
+      final FileLogSink sink = new FileLogSink(new File(logFile),
+              "binary".equalsIgnoreCase(MatProperty.LOG_FILE_FORMAT.getProperty("text")),
+              MatProperty.LOG_FILE_MAXSIZE.getProperty(10000000L),
+              MatProperty.LOG_FILE_MAXAGE.getProperty(86400000L),
+              MatProperty.LOG_FILE_COUNT.getProperty(5),
+              MatProperty.LOG_FILE_QUEUE.getProperty(10000));
+      logMgr.addLogListener(sink);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> sink.close(1000), "MatSwitch log file closer"));
+    }
+  }
+  
   /** load properties from file embedded in jar */
   private static void loadProperties() {
     final String loadFrom = "/MatSwitch.properties";
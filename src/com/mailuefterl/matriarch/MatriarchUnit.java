@@ -36,12 +36,20 @@ public class MatriarchUnit {
   private final byte unitId;
   /** is this a pseudo-unit (without MIDI communication) ? */
   private final boolean pseudo;
+  /** does the unit send its unitId in answers? (firmware 1.2.0 does not) */
+  private final boolean answersWithUnitId;
   
   /** constructor */
   public MatriarchUnit(final String name, final byte unitId) {
+    this(name, unitId, true);
+  }
+  
+  /** constructor with information whether the unit sends its unitId in answers */
+  public MatriarchUnit(final String name, final byte unitId, final boolean answersWithUnitId) {
     this.name = name;
     this.unitId = unitId;
     this.pseudo = false;
+    this.answersWithUnitId = answersWithUnitId;
   }
   
   /** constructor for pseudo units */
@@ -49,6 +57,7 @@ public class MatriarchUnit {
     this.name = name;
     this.unitId = -1;
     this.pseudo = true;
+    this.answersWithUnitId = false;
   }
   
   /** string representation */
@@ -65,4 +74,10 @@ public class MatriarchUnit {
   public boolean isPseudo() {
     return pseudo;
   }
+  
+  /** does the unit send its unitId in answers? If not, its answers cannot be
+   * told apart from other units' answers. */
+  public boolean answersWithUnitId() {
+    return answersWithUnitId;
+  }
 }
@@ -0,0 +1,230 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Records raw MIDI messages sent and received into a compact binary capture file,
+ * which can be fed back with MidiCaptureReplayer.
+ * File format: "MSCP", short version, long start time [System.currentTimeMillis()],
+ * then per message: byte direction (0: sent, 1: received), long time since start [nsec],
+ * short length, message bytes.
+ * record() is lock-free (it may be called on the driver's callback thread): messages are
+ * handed to a writer thread through a bounded queue, and dropped (and counted) if the
+ * writer cannot keep up. The writer collects them in a buffer, which is only written to
+ * the file when it is full (and on close).
+ */
+public class MidiCaptureRecorder {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  /** magic bytes at the start of a capture file */
+  static final byte[] MAGIC = { 'M', 'S', 'C', 'P' };
+  /** version of file format */
+  static final short VERSION = 1;
+  /** direction: message sent to Matriarch */
+  public static final byte DIRECTION_OUT = 0;
+  /** direction: message received from Matriarch */
+  public static final byte DIRECTION_IN = 1;
+  /** size of the write buffer */
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** max. number of messages waiting for the writer */
+  private static final int QUEUE_SIZE = 16 * 1024;
+  /** time the writer parks when there is nothing to write [nsec] */
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  
+  /** capture file */
+  private final File file;
+  /** time the capture was started [System.nanoTime()] */
+  private final long startNanos;
+  /** messages waiting for the writer */
+  private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<Message>();
+  /** number of messages in queue */
+  private final AtomicInteger queued = new AtomicInteger();
+  /** number of messages dropped because the queue was full */
+  private final AtomicInteger numDropped = new AtomicInteger();
+  /** writer thread */
+  private final Thread writer;
+  /** set by close() */
+  private volatile boolean closing;
+  /** number of messages recorded (written by writer thread only) */
+  private volatile long numRecorded;
+  
+  // the following fields are only used by the writer thread (and the constructor)
+  /** open capture file, null once closed */
+  private FileChannel channel;
+  /** write buffer */
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  
+  /** constructor, creates the capture file (an existing file is overwritten) and starts the writer thread */
+  public MidiCaptureRecorder(final File file) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    startNanos = System.nanoTime();
+    buffer.put(MAGIC);
+    buffer.putShort(VERSION);
+    buffer.putLong(System.currentTimeMillis());
+    writer = new Thread(() -> writeRunner(), "MidiCaptureRecorder");
+    writer.setDaemon(true);
+    writer.start();
+    log.info("Recording MIDI messages to ", file);
+  }
+  
+  /** create a recorder as configured by MatSwitch.midi.capture, or null if disabled */
+  public static MidiCaptureRecorder fromProperties() {
+    final String fileName = MatProperty.MIDI_CAPTURE.getProperty("");
+    if (fileName.isEmpty()) {
+      return null;
+    }
+    try {
+      return new MidiCaptureRecorder(new File(fileName));
+    }
+    catch (final IOException e) {
+      log.error("Unable to create MIDI capture file ", fileName, ": ", e);
+      return null;
+    }
+  }
+  
+  /** record a message (data[0..length-1]) sent or received at nanoTime [System.nanoTime()].
+   * data is kept until written and must not be modified by the caller afterwards. */
+  public void record(final byte direction, final byte[] data, final int length, final long nanoTime) {
+    if (closing) {
+      numDropped.incrementAndGet();
+      return;
+    }
+    if (queued.incrementAndGet() > QUEUE_SIZE) {
+      queued.decrementAndGet();
+      numDropped.incrementAndGet();
+      return;
+    }
+    queue.offer(new Message(direction, nanoTime - startNanos, data, length));
+  }
+  
+  /** number of messages recorded so far */
+  public long getNumRecorded() {
+    return numRecorded;
+  }
+  
+  /** number of messages dropped because the writer could not keep up */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+  
+  /** write queued messages and close the file (waits up to timeout [msec]) */
+  public void close(final long timeout) {
+    closing = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(timeout);
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /** run method of the writer thread */
+  private void writeRunner() {
+    try {
+      while (true) {
+        final Message msg = queue.poll();
+        if (msg == null) {
+          if (closing) {
+            break;
+          }
+          LockSupport.parkNanos(this, IDLE_NANOS);
+          continue;
+        }
+        queued.decrementAndGet();
+        final int header = 1 + 8 + 2;
+        final int length = Math.min(msg.length, BUFFER_SIZE - header); // very long Sysex is cut off
+        if (buffer.remaining() < header + length) {
+          flush();
+        }
+        buffer.put(msg.direction);
+        buffer.putLong(msg.nanos);
+        buffer.putShort((short)length);
+        buffer.put(msg.data, 0, length);
+        numRecorded++;
+      }
+      flush();
+      log.info("Recorded ", numRecorded, " MIDI messages to ", file,
+              (numDropped.get() > 0) ? ", dropped "+ numDropped.get() : "");
+    }
+    catch (final IOException | RuntimeException e) {
+      log.error("Unable to write MIDI capture file ", file, ", stopped recording: ", e);
+      closing = true;
+    }
+    finally {
+      try {
+        channel.close();
+      }
+      catch (final IOException ignore) {}
+      channel = null;
+    }
+  }
+  
+  /** write the buffer to the file */
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+  
+  /** a message waiting for the writer */
+  private static final class Message {
+    /** DIRECTION_OUT or DIRECTION_IN */
+    private final byte direction;
+    /** time since start of capture [nsec] */
+    private final long nanos;
+    /** message bytes */
+    private final byte[] data;
+    /** message length */
+    private final int length;
+    
+    /** constructor */
+    private Message(final byte direction, final long nanos, final byte[] data, final int length) {
+      this.direction = direction;
+      this.nanos = nanos;
+      this.data = data;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Feeds the received messages of a MIDI capture file (see MidiCaptureRecorder) into
+ * the receive path of MatSwitchMidi, in their original order and with their original
+ * timing (divided by a speed factor, or as fast as possible). No message is dropped:
+ * when the receive buffer is full, the replay waits. Messages that cannot be Matriarch
+ * answers (the capture contains everything the InPort delivered) are skipped, like
+ * with the default input filter. Sent messages in the capture are skipped as well, they
+ * only serve as reference for the timing.
+ * Limitation: the replay does not reproduce the requests. Fed answers are parsed, logged
+ * and counted in the metrics, but never complete fetch requests or reach the unit discovery,
+ * since a replay may run while real requests are pending and captured values must not end
+ * up in the unit state.
+ */
+public class MidiCaptureReplayer {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  /** time to wait when the receive buffer is full [nsec] */
+  private static final long RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  
+  /** MIDI handler to feed */
+  private final MatSwitchMidi midi;
+  /** speed factor (2 = twice as fast as recorded, 0 = as fast as possible) */
+  private final double speed;
+  
+  /** constructor */
+  public MidiCaptureReplayer(final MatSwitchMidi midi, final double speed) {
+    this.midi = midi;
+    this.speed = speed;
+  }
+  
+  /** replay a capture file on a new thread. The future completes with the number of messages fed. */
+  public CompletableFuture<Integer> replay(final File file) {
+    final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+    final Thread t = new Thread(() -> {
+      try {
+        result.complete(replayFile(file));
+      }
+      catch (final IOException | RuntimeException e) {
+        log.error("Unable to replay MIDI capture ", file, ": ", e);
+        result.completeExceptionally(e);
+      }
+    }, "MidiCaptureReplayer");
+    t.setDaemon(true);
+    t.start();
+    return result;
+  }
+  
+  /** replay a capture file in the calling thread, returns the number of messages fed */
+  public int replayFile(final File file) throws IOException {
+    final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    final byte[] magic = new byte[MidiCaptureRecorder.MAGIC.length];
+    try {
+      buf.get(magic);
+      final short version = buf.getShort();
+      if (!Arrays.equals(magic, MidiCaptureRecorder.MAGIC) || (version != MidiCaptureRecorder.VERSION)) {
+        throw new IOException("not a MIDI capture file (version "+ MidiCaptureRecorder.VERSION +")");
+      }
+      buf.getLong(); // start time
+      log.info("Replaying MIDI capture ", file, (speed > 0) ? " at speed "+ speed : " as fast as possible");
+      final long start = System.nanoTime();
+      final byte[] data = new byte[0xffff];
+      int numFed = 0;
+      while (buf.hasRemaining()) {
+        final byte direction = buf.get();
+        final long nanos = buf.getLong();
+        final int length = buf.getShort() & 0xffff;
+        buf.get(data, 0, length);
+        if ((direction != MidiCaptureRecorder.DIRECTION_IN) || !MidiInputFilter.isMatriarchSysex(data, length)) {
+          continue;
+        }
+        if (speed > 0) {
+          final long due = start + (long)(nanos / speed);
+          long wait;
+          while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        while (!midi.injectIncoming(data, length)) {
+          LockSupport.parkNanos(RETRY_NANOS);
+        }
+        numFed++;
+      }
+      log.info("Replayed ", numFed, " received MIDI messages in ",
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), " ms");
+      return numFed;
+    }
+    catch (final BufferUnderflowException e) {
+      throw new IOException("MIDI capture file is truncated");
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+import uk.co.xfactorylibrarians.coremidi4j.CoreMidiDeviceProvider;
+
+/**
+ * Registry of available MIDI interfaces. Enumerates all devices once, sorting them
+ * into InPorts (transmitters) and OutPorts (receivers) in one pass, and keeps the
+ * result until invalidate() is called (on a hotplug notification or an explicit
+ * refresh). MidiInterface instances are reused for devices that are still present,
+ * so they stay equal across refreshes. Thread safe.
+ */
+public class MidiDeviceRegistry {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  
+  /** devices that are always available in addition to the system's devices */
+  private final List<MidiDevice> extraDevices = new CopyOnWriteArrayList<MidiDevice>();
+  /** interface wrappers of the devices found in the last enumeration (guarded by this) */
+  private Map<MidiDevice, MidiInterface> interfaces = new IdentityHashMap<MidiDevice, MidiInterface>();
+  /** InPorts found in the last enumeration, null if enumeration is needed (guarded by this) */
+  private List<MidiInterface> inPorts;
+  /** OutPorts found in the last enumeration, null if enumeration is needed (guarded by this) */
+  private List<MidiInterface> outPorts;
+  
+  /** get the available MIDI InPorts (devices with transmitters) */
+  public synchronized List<MidiInterface> getInPorts() {
+    if (inPorts == null) {
+      enumerate();
+    }
+    return inPorts;
+  }
+  
+  /** get the available MIDI OutPorts (devices with receivers) */
+  public synchronized List<MidiInterface> getOutPorts() {
+    if (outPorts == null) {
+      enumerate();
+    }
+    return outPorts;
+  }
+  
+  /** forget the enumerated devices, the next request enumerates again */
+  public synchronized void invalidate() {
+    inPorts = null;
+    outPorts = null;
+  }
+  
+  /** add a device that is always listed (e.g. a virtual device) */
+  public void addDevice(final MidiDevice dev) {
+    if (!extraDevices.contains(dev)) {
+      extraDevices.add(dev);
+      invalidate();
+    }
+  }
+  
+  /** enumerate all devices and sort them into InPorts and OutPorts */
+  private void enumerate() {
+    final Map<MidiDevice, MidiInterface> found = new IdentityHashMap<MidiDevice, MidiInterface>();
+    final List<MidiInterface> ins = new ArrayList<MidiInterface>();
+    final List<MidiInterface> outs = new ArrayList<MidiInterface>();
+    final List<MidiDevice> devices = new ArrayList<MidiDevice>();
+    for (MidiDevice.Info minfo: CoreMidiDeviceProvider.getMidiDeviceInfo()) {
+      try {
+        if (minfo.getName().startsWith("Microsoft GS") || minfo.getName().startsWith("Microsoft MIDI Mapper")) {
+          continue;
+        }
+        MidiDevice mdev = MidiSystem.getMidiDevice(minfo);
+        if ((mdev instanceof Synthesizer) || (mdev instanceof Sequencer)) {
+          continue;  // ignore software synth & seq
+        }
+        devices.add(mdev);
+      }
+      catch (final MidiUnavailableException e) {
+        log.error("Warning: unable to fetch Midi interface ", minfo.getName(), ": ", e);
+      }
+      catch (final IllegalArgumentException e) {
+        // "Requested device not installed" might occur due to MidiSystem concurrency issue
+        log.error("Warning: unable to fetch Midi interface ", minfo.getName(), ": ", e);
+      }
+    }
+    devices.addAll(extraDevices);
+    for (final MidiDevice mdev: devices) {
+      MidiInterface mintf = interfaces.get(mdev);
+      if (mintf == null) {
+        mintf = new MidiInterface(mdev);
+      }
+      found.put(mdev, mintf);
+      if (mdev.getMaxTransmitters() != 0) {
+        log.debug("found MIDI InPort ", mintf);
+        ins.add(mintf);
+      }
+      if (mdev.getMaxReceivers() != 0) {
+        log.debug("found MIDI OutPort ", mintf);
+        outs.add(mintf);
+      }
+    }
+    interfaces = found;
+    inPorts = Collections.unmodifiableList(ins);
+    outPorts = Collections.unmodifiableList(outs);
+    log.info("Found ", ins.size(), " MIDI InPorts and ", outs.size(), " MIDI OutPorts");
+  }
+}
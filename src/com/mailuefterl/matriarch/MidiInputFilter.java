@@ -0,0 +1,134 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Locale;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Prefilter for incoming MIDI messages, applied on the driver's callback thread before a
+ * message is copied or logged. Depending on configuration it drops realtime messages
+ * (MIDI clock, active sensing, ...), all other non-Sysex messages, and Sysex messages that
+ * cannot be Matriarch parameter answers (not Moog 04 17, or too long). Realtime and
+ * non-Sysex messages as well as long Sysex messages are rejected without accessing their data.
+ * Counters are written by the producer thread only.
+ */
+public class MidiInputFilter {
+  /** Moog manufacturer ID */
+  private static final byte MANUFACTURER_MOOG = 0x04;
+  /** Matriarch device byte */
+  private static final byte DEVICE_MATRIARCH = 0x17;
+  
+  /** drop realtime messages (status F8..FF) */
+  private final boolean dropRealtime;
+  /** drop other non-Sysex messages (channel and system common messages) */
+  private final boolean dropOther;
+  /** drop Sysex messages that do not come from Matriarch */
+  private final boolean dropForeign;
+  /** number of realtime messages dropped */
+  private volatile long numRealtime;
+  /** number of other non-Sysex messages dropped */
+  private volatile long numOther;
+  /** number of foreign Sysex messages dropped */
+  private volatile long numForeign;
+  
+  /** constructor */
+  public MidiInputFilter(final boolean dropRealtime, final boolean dropOther, final boolean dropForeign) {
+    this.dropRealtime = dropRealtime;
+    this.dropOther = dropOther;
+    this.dropForeign = dropForeign;
+  }
+  
+  /** create filter from a property value: comma-separated list of "realtime", "other" and "foreign"
+   * (what to drop), or "none" */
+  public static MidiInputFilter fromProperty(final String value) {
+    final String v = value.toLowerCase(Locale.ROOT);
+    return new MidiInputFilter(v.contains("realtime"), v.contains("other"), v.contains("foreign"));
+  }
+  
+  /** create filter configured by MatSwitch.midi.receive.filter (default: drop everything not from Matriarch) */
+  public static MidiInputFilter fromProperties() {
+    return fromProperty(MatProperty.MIDI_RECEIVE_FILTER.getProperty("realtime,other,foreign"));
+  }
+  
+  /** check an incoming message. Returns its bytes if it passes the filter, null if it is dropped. */
+  public byte[] accept(final MidiMessage message) {
+    final int length = message.getLength();
+    if (message instanceof SysexMessage) {
+      if (dropForeign && (length > SysexRingBuffer.SLOT_SIZE)) {
+        numForeign++;
+        return null;
+      }
+      final byte[] data = message.getMessage();
+      if (dropForeign && !isMatriarchSysex(data, length)) {
+        numForeign++;
+        return null;
+      }
+      return data;
+    }
+    if (message.getStatus() >= ShortMessage.TIMING_CLOCK) {
+      if (dropRealtime) {
+        numRealtime++;
+        return null;
+      }
+    }
+    else if (dropOther) {
+      numOther++;
+      return null;
+    }
+    return message.getMessage();
+  }
+  
+  /** check whether a message can be a Matriarch parameter answer (Moog 04 17 Sysex of at most SLOT_SIZE bytes) */
+  public static boolean isMatriarchSysex(final byte[] data, final int length) {
+    return (length >= 3) && (length <= SysexRingBuffer.SLOT_SIZE) && (data[0] == (byte)SysexMessage.SYSTEM_EXCLUSIVE)
+            && (data[1] == MANUFACTURER_MOOG) && (data[2] == DEVICE_MATRIARCH);
+  }
+  
+  /** number of realtime messages dropped */
+  public long getNumRealtime() {
+    return numRealtime;
+  }
+  
+  /** number of other non-Sysex messages dropped */
+  public long getNumOther() {
+    return numOther;
+  }
+  
+  /** number of Sysex messages dropped that were not from Matriarch */
+  public long getNumForeign() {
+    return numForeign;
+  }
+  
+  /** total number of messages dropped */
+  public long getNumDropped() {
+    return numRealtime + numOther + numForeign;
+  }
+}
@@ -0,0 +1,198 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of MIDI metrics: latency histograms per operation, and counters for
+ * timeouts, retries, parse failures and messages/bytes per direction, each broken
+ * down by MIDI interface and unit. Recording is lock-free, snapshots can be
+ * written to a text file.
+ */
+public class MidiMetrics {
+  /** operations with latency histograms */
+  public enum Operation {
+    /** fetch a parameter: from request until answer */
+    FETCH,
+    /** store a parameter: from request until sent (Matriarch does not acknowledge stores) */
+    STORE,
+    /** search for units: from start until finished */
+    DISCOVER
+  }
+  
+  /** counted events */
+  public enum Counter {
+    /** fetch requests without answer */
+    TIMEOUT,
+    /** parameters requested again after a failure */
+    RETRY,
+    /** received messages that could not be parsed */
+    PARSE_FAILURE,
+    /** messages sent */
+    MESSAGES_OUT,
+    /** bytes sent */
+    BYTES_OUT,
+    /** messages received */
+    MESSAGES_IN,
+    /** bytes received */
+    BYTES_IN
+  }
+  
+  /** pseudo unit ID for events that do not belong to a unit (e.g. unparseable messages) */
+  public static final int UNKNOWN_UNIT = -1;
+  /** name used if no MIDI interface is selected */
+  private static final String NO_INTERFACE = "(none)";
+  
+  /** metrics per interface name */
+  private final Map<String, InterfaceMetrics> interfaces = new ConcurrentHashMap<String, InterfaceMetrics>();
+  /** time metrics were started or reset [System.currentTimeMillis()] */
+  private volatile long startMillis = System.currentTimeMillis();
+  
+  /** record the latency [nsec] of an operation */
+  public void recordLatency(final Operation op, final String intf, final int unitId, final long nanos) {
+    getUnit(intf, unitId).latencies[op.ordinal()].record(nanos);
+  }
+  
+  /** count an event */
+  public void count(final Counter counter, final String intf, final int unitId) {
+    getUnit(intf, unitId).counters[counter.ordinal()].increment();
+  }
+  
+  /** count several events at once */
+  public void add(final Counter counter, final String intf, final int unitId, final long n) {
+    getUnit(intf, unitId).counters[counter.ordinal()].add(n);
+  }
+  
+  /** count a message sent or received */
+  public void countMessage(final boolean outgoing, final String intf, final int unitId, final int bytes) {
+    final UnitMetrics unit = getUnit(intf, unitId);
+    unit.counters[(outgoing ? Counter.MESSAGES_OUT : Counter.MESSAGES_IN).ordinal()].increment();
+    unit.counters[(outgoing ? Counter.BYTES_OUT : Counter.BYTES_IN).ordinal()].add(bytes);
+  }
+  
+  /** discard all metrics */
+  public void reset() {
+    interfaces.clear();
+    startMillis = System.currentTimeMillis();
+  }
+  
+  /** get (or create) the metrics of a unit */
+  private UnitMetrics getUnit(final String intf, final int unitId) {
+    final String name = (intf == null) ? NO_INTERFACE : intf;
+    InterfaceMetrics im = interfaces.get(name);
+    if (im == null) {
+      im = interfaces.computeIfAbsent(name, n -> new InterfaceMetrics());
+    }
+    final int idx = ((unitId < 0) || (unitId > 127)) ? 128 : unitId;
+    UnitMetrics um = im.units.get(idx);
+    if (um == null) {
+      im.units.compareAndSet(idx, null, new UnitMetrics());
+      um = im.units.get(idx);
+    }
+    return um;
+  }
+  
+  /** get a snapshot of all metrics as text */
+  public String getSnapshot() {
+    final long now = System.currentTimeMillis();
+    final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    final StringBuilder sb = new StringBuilder();
+    sb.append("MIDI metrics from ").append(df.format(new Date(startMillis)))
+      .append(" to ").append(df.format(new Date(now)));
+    final double seconds = Math.max(1, now - startMillis) / 1000.0;
+    for (final Map.Entry<String, InterfaceMetrics> ie: new TreeMap<String, InterfaceMetrics>(interfaces).entrySet()) {
+      sb.append("\n\nInterface ").append(ie.getKey());
+      final long[] totals = new long[Counter.values().length];
+      for (int i = 0; i <= 128; i++) {
+        final UnitMetrics um = ie.getValue().units.get(i);
+        if (um == null) {
+          continue;
+        }
+        sb.append("\n  ").append((i == 128) ? "unknown unit" : (i == 0x7f) ? "broadcast" : String.format("unit %02X", i));
+        for (final Operation op: Operation.values()) {
+          final LatencyHistogram h = um.latencies[op.ordinal()];
+          if (h.getCount() > 0) {
+            sb.append("\n    ").append(op.name().toLowerCase()).append(": ").append(h);
+          }
+        }
+        sb.append("\n   ");
+        for (final Counter c: Counter.values()) {
+          final long v = um.counters[c.ordinal()].sum();
+          totals[c.ordinal()] += v;
+          sb.append(' ').append(c.name().toLowerCase()).append('=').append(v);
+        }
+      }
+      sb.append(String.format("\n  total: %.1f messages/s and %.1f bytes/s out, %.1f messages/s and %.1f bytes/s in",
+              totals[Counter.MESSAGES_OUT.ordinal()] / seconds, totals[Counter.BYTES_OUT.ordinal()] / seconds,
+              totals[Counter.MESSAGES_IN.ordinal()] / seconds, totals[Counter.BYTES_IN.ordinal()] / seconds));
+    }
+    return sb.append('\n').toString();
+  }
+  
+  /** write a snapshot of all metrics to a text file */
+  public void writeSnapshot(final File file) throws IOException {
+    try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+      pw.print(getSnapshot());
+    }
+  }
+  
+  /** metrics of one MIDI interface */
+  private static final class InterfaceMetrics {
+    /** metrics per unit ID (index 128: unknown unit), created on first use */
+    private final AtomicReferenceArray<UnitMetrics> units = new AtomicReferenceArray<UnitMetrics>(129);
+  }
+  
+  /** metrics of one unit */
+  private static final class UnitMetrics {
+    /** latency histograms (indexed by Operation ordinal) */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    /** counters (indexed by Counter ordinal) */
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    
+    /** constructor */
+    private UnitMetrics() {
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyHistogram();
+      }
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = new LongAdder();
+      }
+    }
+  }
+}
@@ -0,0 +1,331 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Transmitter;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Finds the MIDI port pairs that reach Matriarch units: opens all InPorts at once and
+ * sends the broadcast fetch request for parameter 0 (the one unit discovery uses, which
+ * every unit answers with its unit ID) on one OutPort after the other. Each OutPort gets
+ * an equal share of the deadline, but at least the minimum MIDI timeout; answers are
+ * attributed to the OutPort whose share is running when they arrive.
+ * <p>A late answer would be attributed to the wrong OutPort, so every port pair found
+ * this way is confirmed before it is reported: after a guard interval (answers arriving
+ * in it are ignored) a fetch for a different parameter is sent to the unit's own unit ID
+ * on the OutPort, and its answer must arrive on the InPort within the MIDI timeout.
+ */
+public class PortProber {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  /** broadcast unit ID */
+  private final static byte BROADCAST_ID = 0x7f;
+  /** parameter requested by the broadcast (0: unit ID) */
+  private final static byte PROBE_PARAM_ID = 0;
+  
+  /** MIDI handler (for timing) */
+  private final MatSwitchMidi midi;
+  /** time to wait for answers to all OutPorts, and for the answer to a confirmation [msec] */
+  private final long timeoutMillis;
+  /** min. time to wait for answers to one OutPort, and guard interval before a confirmation [msec] */
+  private final long minSlotMillis;
+  /** parameter requested to confirm a port pair (must not be PROBE_PARAM_ID, so that
+   * late answers to the broadcasts cannot confirm a pair) */
+  private final byte confirmParamId;
+  
+  /** constructor
+   * @param timeoutMillis time to probe all OutPorts, and to wait for the answer to each confirmation
+   * @param minSlotMillis min. time to wait for answers to one OutPort (the probe takes longer than
+   *   timeoutMillis if there are more than timeoutMillis / minSlotMillis OutPorts), and guard interval
+   *   before each confirmation
+   * @param confirmParamId parameter fetched from a unit to confirm a port pair */
+  public PortProber(final MatSwitchMidi midi, final long timeoutMillis, final long minSlotMillis,
+          final byte confirmParamId) {
+    this.midi = midi;
+    this.timeoutMillis = timeoutMillis;
+    this.minSlotMillis = minSlotMillis;
+    this.confirmParamId = confirmParamId;
+  }
+  
+  /** probe all combinations of the given ports. The future completes with the port pairs whose
+   * units answered both the broadcast and the confirmation. */
+  public CompletableFuture<List<Result>> probe(final List<MidiInterface> inPorts, final List<MidiInterface> outPorts) {
+    log.info("Probing ", inPorts.size(), " MIDI InPorts and ", outPorts.size(), " OutPorts for Matriarch units...");
+    if (inPorts.isEmpty() || outPorts.isEmpty()) {
+      return CompletableFuture.completedFuture(new ArrayList<Result>(0));
+    }
+    final long slotMillis = Math.max(minSlotMillis, timeoutMillis / outPorts.size());
+    final List<MidiDevice> openedDevices = new ArrayList<MidiDevice>();
+    final List<Transmitter> transmitters = new ArrayList<Transmitter>();
+    final ProbeState state = new ProbeState();
+    for (final MidiInterface in: inPorts) {
+      try {
+        final Transmitter tx = open(in.getDevice(), openedDevices).getTransmitter();
+        tx.setReceiver(new ProbeReceiver(in, state));
+        transmitters.add(tx);
+      }
+      catch (final MidiUnavailableException | IllegalStateException e) {
+        log.error("Cannot probe MIDI InPort ", in, ": ", e);
+      }
+    }
+    CompletableFuture<Void> slots = CompletableFuture.completedFuture(null);
+    for (final MidiInterface out: outPorts) {
+      slots = slots.thenCompose(v -> {
+        state.currentOut = out;
+        sendFetch(out, PROBE_PARAM_ID, BROADCAST_ID, openedDevices);
+        return midi.delay(slotMillis);
+      });
+    }
+    final List<Result> confirmed = new ArrayList<Result>();
+    return slots.thenCompose(v -> {
+      state.currentOut = null;
+      final List<Result> candidates;
+      synchronized(state.candidates) {
+        candidates = new ArrayList<Result>(state.candidates);
+      }
+      CompletableFuture<Void> confirmations = CompletableFuture.completedFuture(null);
+      for (final Result candidate: candidates) {
+        for (final byte unitId: candidate.getUnitIds()) {
+          confirmations = confirmations.thenCompose(w -> confirm(state, candidate, unitId, openedDevices, confirmed));
+        }
+      }
+      return confirmations;
+    }).handle((v, ex) -> {
+      if (ex != null) {
+        log.error("Probing MIDI ports failed: ", ex);
+      }
+      for (final Transmitter tx: transmitters) {
+        tx.close();
+      }
+      synchronized(openedDevices) {
+        for (final MidiDevice dev: openedDevices) {
+          dev.close();
+        }
+      }
+      log.info("Found Matriarch units on ", confirmed.size(), " MIDI port pairs", confirmed.isEmpty() ? "" : ": "+ confirmed);
+      return confirmed;
+    });
+  }
+  
+  /** confirm that a unit found on a candidate port pair answers a request addressed to it.
+   * Adds the unit to confirmed (only touched by the probe's completion chain) if it does. */
+  private CompletableFuture<Void> confirm(final ProbeState state, final Result candidate, final byte unitId,
+          final List<MidiDevice> openedDevices, final List<Result> confirmed) {
+    return midi.delay(minSlotMillis).thenCompose(v -> {
+      final Confirmation confirmation = new Confirmation(candidate.inPort, unitId, confirmParamId);
+      state.confirmation = confirmation;
+      sendFetch(candidate.outPort, confirmParamId, unitId, openedDevices);
+      return confirmation.answered.applyToEither(midi.delay(timeoutMillis).thenApply(w -> false), answered -> answered);
+    }).thenAccept(answered -> {
+      state.confirmation = null;
+      if (answered) {
+        addResult(confirmed, candidate.inPort, candidate.outPort, unitId);
+      }
+      else {
+        log.info(String.format("Matriarch unit %02X", unitId), " did not confirm OutPort ", candidate.outPort,
+                " -> InPort ", candidate.inPort);
+      }
+    });
+  }
+  
+  /** send a fetch request to one OutPort */
+  private static void sendFetch(final MidiInterface out, final byte paramId, final byte unitId,
+          final List<MidiDevice> openedDevices) {
+    try {
+      final Receiver rx = open(out.getDevice(), openedDevices).getReceiver();
+      final byte[] request = SysexEncoder.fetchTemplate(paramId, unitId);
+      rx.send(new SysexMessage(request, request.length), -1);
+      rx.close();
+    }
+    catch (final MidiUnavailableException | InvalidMidiDataException | IllegalStateException e) {
+      log.error("Cannot probe MIDI OutPort ", out, ": ", e);
+    }
+  }
+  
+  /** open a device (if not open yet, remembering it in opened so that it is closed again) */
+  private static MidiDevice open(final MidiDevice dev, final List<MidiDevice> opened) throws MidiUnavailableException {
+    synchronized(opened) {
+      if (!dev.isOpen() && !opened.contains(dev)) {
+        dev.open();
+        opened.add(dev);
+      }
+    }
+    return dev;
+  }
+  
+  /** record that a unit answered on inPort to a request sent to outPort */
+  private static void addResult(final List<Result> results, final MidiInterface inPort, final MidiInterface outPort,
+          final byte unitId) {
+    synchronized(results) {
+      for (final Result result: results) {
+        if ((result.inPort == inPort) && (result.outPort == outPort)) {
+          result.addUnit(unitId);
+          return;
+        }
+      }
+      final Result result = new Result(inPort, outPort);
+      result.addUnit(unitId);
+      results.add(result);
+    }
+  }
+  
+  /** state of one probe, shared by its receivers */
+  private static final class ProbeState {
+    /** OutPort whose broadcast answers are expected (null outside of the broadcast slots) */
+    private volatile MidiInterface currentOut;
+    /** confirmation in progress (null if none) */
+    private volatile Confirmation confirmation;
+    /** port pairs that answered the broadcasts */
+    private final List<Result> candidates = new ArrayList<Result>();
+  }
+  
+  /** the answer expected to confirm a port pair */
+  private static final class Confirmation {
+    /** InPort the answer must arrive on */
+    private final MidiInterface inPort;
+    /** unit that must answer */
+    private final byte unitId;
+    /** parameter requested */
+    private final byte paramId;
+    /** completed with true when the answer arrives */
+    private final CompletableFuture<Boolean> answered = new CompletableFuture<Boolean>();
+    
+    /** constructor */
+    private Confirmation(final MidiInterface inPort, final byte unitId, final byte paramId) {
+      this.inPort = inPort;
+      this.unitId = unitId;
+      this.paramId = paramId;
+    }
+  }
+  
+  /** receives answers on one InPort during the probe (called in MIDI driver thread) */
+  private static final class ProbeReceiver implements Receiver {
+    /** InPort we are listening on */
+    private final MidiInterface inPort;
+    /** state of the probe */
+    private final ProbeState state;
+    
+    /** constructor */
+    private ProbeReceiver(final MidiInterface inPort, final ProbeState state) {
+      this.inPort = inPort;
+      this.state = state;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public void send(final MidiMessage message, final long timeStamp) {
+      if (!(message instanceof SysexMessage)) {
+        return;
+      }
+      final MatParameterAnswer answer;
+      try {
+        answer = new MatParameterAnswer((SysexMessage)message);
+      }
+      catch (final ParseException e) {
+        return; // not from Matriarch (e.g. our own request echoed by a MIDI thru)
+      }
+      if (!answer.isAnswer) {
+        return;
+      }
+      final MidiInterface outPort = state.currentOut;
+      if ((answer.paramId == PROBE_PARAM_ID) && (outPort != null)) {
+        // firmware 1.2.0 does not send its unitId, but the value of parameter 0 is the unit ID
+        addResult(state.candidates, inPort, outPort, (answer.unitId < 0) ? (byte)answer.paramValue : answer.unitId);
+        return;
+      }
+      final Confirmation confirmation = state.confirmation;
+      if ((confirmation != null) && (confirmation.inPort == inPort) && (answer.paramId == confirmation.paramId)
+              && ((answer.unitId == confirmation.unitId) || (answer.unitId < 0))) {
+        confirmation.answered.complete(true);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+      // nada
+    }
+  }
+  
+  /** a port pair that reaches Matriarch units */
+  public static final class Result {
+    /** InPort the answers arrived on */
+    public final MidiInterface inPort;
+    /** OutPort the requests were sent to */
+    public final MidiInterface outPort;
+    /** unit IDs that answered */
+    private byte[] unitIds = new byte[0];
+    
+    /** constructor */
+    private Result(final MidiInterface inPort, final MidiInterface outPort) {
+      this.inPort = inPort;
+      this.outPort = outPort;
+    }
+    
+    /** add a unit that answered (if not known yet) */
+    private synchronized void addUnit(final byte unitId) {
+      for (final byte known: unitIds) {
+        if (known == unitId) {
+          return;
+        }
+      }
+      unitIds = Arrays.copyOf(unitIds, unitIds.length + 1);
+      unitIds[unitIds.length - 1] = unitId;
+    }
+    
+    /** get the unit IDs that answered */
+    public synchronized byte[] getUnitIds() {
+      return unitIds.clone();
+    }
+    
+    /** string representation */
+    @Override
+    public synchronized String toString() {
+      final StringBuilder sb = new StringBuilder();
+      sb.append("OutPort ").append(outPort).append(" -> InPort ").append(inPort).append(": unit");
+      for (final byte unitId: unitIds) {
+        sb.append(String.format(" %02X", unitId));
+      }
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for MIDI requests: a retry budget per request and exponential
+ * backoff with jitter between retry rounds.
+ */
+public class RetryPolicy {
+  /** max. number of retries per request (after the first attempt) */
+  private final int maxRetries;
+  /** backoff before the first retry round [msec] */
+  private final long baseBackoff;
+  /** upper limit for backoff [msec] */
+  private final long maxBackoff;
+  
+  /** constructor */
+  public RetryPolicy(final int maxRetries, final long baseBackoffMillis, final long maxBackoffMillis) {
+    this.maxRetries = Math.max(0, maxRetries);
+    this.baseBackoff = Math.max(0, baseBackoffMillis);
+    this.maxBackoff = Math.max(baseBackoff, maxBackoffMillis);
+  }
+  
+  /** create a policy from MatProperty settings */
+  public static RetryPolicy fromProperties() {
+    return new RetryPolicy(
+            MatProperty.MIDI_RETRIES.getProperty(3),
+            MatProperty.MIDI_RETRY_BACKOFF.getProperty(20L),
+            MatProperty.MIDI_RETRY_BACKOFF_MAX.getProperty(500L));
+  }
+  
+  /** may a request that already failed numFailures times be tried again? */
+  public boolean mayRetry(final int numFailures) {
+    return numFailures <= maxRetries;
+  }
+  
+  /** get the backoff before retry round n (starting with 0) [msec]:
+   * base * 2^n, limited to max, randomized to between half and full value */
+  public long getBackoff(final int round) {
+    final long backoff = Math.min(maxBackoff, baseBackoff << Math.min(round, 30));
+    if (backoff <= 1) {
+      return backoff;
+    }
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+  
+  /** sleep for the backoff before retry round n */
+  public void backoff(final int round) {
+    final long millis = getBackoff(round);
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip time estimator for one Matriarch unit, in the style of TCP's
+ * retransmission timeout (RFC 6298): keeps a smoothed mean and mean deviation
+ * of observed round trips and derives the timeout from them, clamped to
+ * [floor, ceiling]. Follows Karn's rule: requests for a parameter whose previous
+ * request timed out are retransmissions, their answers may belong to the earlier
+ * request, so they must not be used as samples (see timedOut(byte) and
+ * isRetransmission(byte)). Thread safe.
+ */
+public class RttEstimator {
+  /** lower limit for timeout [nsec] */
+  private final long floorNanos;
+  /** upper limit (and initial value) for timeout [nsec] */
+  private final long ceilingNanos;
+  /** smoothed round trip time [nsec], or -1 if no sample yet */
+  private long srtt = -1;
+  /** round trip time variation [nsec] */
+  private long rttvar;
+  /** current timeout [nsec] */
+  private long rto;
+  /** bit mask of parameter IDs (0..127) whose last request timed out */
+  private final long[] timedOutParams = new long[2];
+  
+  /** constructor, limits in [msec] */
+  public RttEstimator(final long floorMillis, final long ceilingMillis) {
+    this.ceilingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ceilingMillis));
+    this.floorNanos = Math.min(ceilingNanos, TimeUnit.MILLISECONDS.toNanos(Math.max(1, floorMillis)));
+    this.rto = ceilingNanos;
+  }
+  
+  /** get the current timeout for a request [nsec] */
+  public synchronized long getTimeoutNanos() {
+    return rto;
+  }
+  
+  /** get the smoothed round trip time [nsec], -1 if there is no sample yet */
+  public synchronized long getSrttNanos() {
+    return srtt;
+  }
+  
+  /** add an observed round trip time [nsec] */
+  public synchronized void addSample(final long rttNanos) {
+    if (srtt < 0) {
+      srtt = rttNanos;
+      rttvar = rttNanos / 2;
+    } else {
+      rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+      srtt = (7 * srtt + rttNanos) / 8;
+    }
+    rto = clamp(srtt + 4 * rttvar);
+  }
+  
+  /** a request for a parameter timed out: back off (double the timeout), and remember
+   * that the next request for the parameter is a retransmission */
+  public synchronized void timedOut(final byte paramId) {
+    rto = clamp(2 * rto);
+    timedOutParams[(paramId >> 6) & 1] |= 1L << (paramId & 63);
+  }
+  
+  /** check whether a request for a parameter that is about to be sent is a retransmission
+   * (the previous request timed out), in which case its round trip must not be sampled.
+   * Clears the mark, so only the first request after a timeout counts as retransmission. */
+  public synchronized boolean isRetransmission(final byte paramId) {
+    final int i = (paramId >> 6) & 1;
+    final long bit = 1L << (paramId & 63);
+    final boolean retransmission = (timedOutParams[i] & bit) != 0;
+    timedOutParams[i] &= ~bit;
+    return retransmission;
+  }
+  
+  /** forget all samples and timed out requests (e.g. after the MIDI interface changed) */
+  public synchronized void reset() {
+    srtt = -1;
+    rttvar = 0;
+    rto = ceilingNanos;
+    Arrays.fill(timedOutParams, 0);
+  }
+  
+  /** string representation (for logs) */
+  @Override
+  public synchronized String toString() {
+    return "srtt=" + TimeUnit.NANOSECONDS.toMicros(srtt) + "us rttvar=" + TimeUnit.NANOSECONDS.toMicros(rttvar)
+            + "us timeout=" + TimeUnit.NANOSECONDS.toMillis(rto) + "ms";
+  }
+  
+  /** limit timeout to [floor, ceiling] */
+  private long clamp(final long timeout) {
+    return Math.max(floorNanos, Math.min(ceilingNanos, timeout));
+  }
+}
@@ -0,0 +1,150 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket to pace outgoing MIDI messages, so that Matriarch's input buffer
+ * does not overflow. The bucket is filled with bytesPerSecond tokens per second
+ * up to burstBytes; each message consumes one token per byte. Additionally a
+ * minimum gap between two messages can be configured.
+ * Also counts bytes/messages sent and time spent waiting, per batch.
+ */
+public class SendPacer {
+  /** nanoseconds per second */
+  private static final double NANOS_PER_SECOND = 1e9;
+  
+  /** fill rate [bytes/sec], <= 0 means unlimited */
+  private final int bytesPerSecond;
+  /** bucket size [bytes] */
+  private final int burstBytes;
+  /** minimum gap between two messages [nsec] */
+  private final long gapNanos;
+  /** current number of tokens (may be negative after a message longer than burstBytes) */
+  private double tokens;
+  /** time of last refill [System.nanoTime()] */
+  private long lastRefill;
+  /** time of last message sent [System.nanoTime()] */
+  private long lastSend;
+  /** start of current batch [System.nanoTime()] */
+  private long batchStart;
+  /** number of messages in current batch */
+  private long batchMessages;
+  /** number of bytes in current batch */
+  private long batchBytes;
+  /** time spent waiting for tokens in current batch [nsec] */
+  private long batchWaitNanos;
+  /** lowest token level seen in current batch (headroom left in the bucket) */
+  private double batchMinTokens;
+  
+  /** constructor */
+  public SendPacer(final int bytesPerSecond, final int burstBytes, final long gapMicros) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.burstBytes = Math.max(1, burstBytes);
+    this.gapNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, gapMicros));
+    this.tokens = this.burstBytes;
+    this.lastRefill = System.nanoTime();
+    this.lastSend = lastRefill - gapNanos;
+    beginBatch();
+  }
+  
+  /** wait until a message of the given length may be sent, and account for it.
+   * Callers are serialized, so messages leave in the order they were paced.
+   * An interrupted caller does not wait (its message is still accounted for). */
+  public synchronized void acquire(final int numBytes) {
+    long now = System.nanoTime();
+    if (bytesPerSecond > 0) {
+      refill(now);
+      final double needed = Math.min(numBytes, burstBytes);
+      long sendAt = lastSend + gapNanos;
+      if (tokens < needed) {
+        sendAt = Math.max(sendAt, now + (long)((needed - tokens) * NANOS_PER_SECOND / bytesPerSecond));
+      }
+      now = waitUntil(now, sendAt);
+      refill(now);
+      tokens -= numBytes;
+      batchMinTokens = Math.min(batchMinTokens, tokens);
+    } else {
+      now = waitUntil(now, lastSend + gapNanos);
+    }
+    lastSend = now;
+    batchMessages++;
+    batchBytes += numBytes;
+  }
+  
+  /** start a new batch (resets batch counters) */
+  public synchronized void beginBatch() {
+    batchStart = System.nanoTime();
+    batchMessages = 0;
+    batchBytes = 0;
+    batchWaitNanos = 0;
+    batchMinTokens = tokens;
+  }
+  
+  /** describe the current batch: amount sent, achieved rate and how close it ran to the limit */
+  public synchronized String getBatchStats() {
+    final long elapsed = Math.max(1, System.nanoTime() - batchStart);
+    final double rate = batchBytes * NANOS_PER_SECOND / elapsed;
+    final StringBuilder sb = new StringBuilder();
+    sb.append(batchMessages).append(" messages, ").append(batchBytes).append(" bytes in ");
+    sb.append(TimeUnit.NANOSECONDS.toMillis(elapsed)).append(" ms (");
+    sb.append(Math.round(rate)).append(" bytes/s");
+    if (bytesPerSecond > 0) {
+      sb.append(" = ").append(Math.round(100D * rate / bytesPerSecond)).append("% of limit ");
+      sb.append(bytesPerSecond).append(" bytes/s, min. bucket level ");
+      sb.append(Math.round(batchMinTokens)).append('/').append(burstBytes);
+    }
+    sb.append("), waited ").append(TimeUnit.NANOSECONDS.toMillis(batchWaitNanos)).append(" ms for pacing");
+    return sb.toString();
+  }
+  
+  /** add tokens for the time elapsed since last refill */
+  private void refill(final long now) {
+    tokens = Math.min(burstBytes, tokens + (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND);
+    lastRefill = now;
+  }
+  
+  /** park the current thread until the given time, returns the current time.
+   * Returns early if the thread is interrupted (the interrupt flag stays set). */
+  private long waitUntil(long now, final long target) {
+    if (target - now <= 0) {
+      return now;
+    }
+    final long waitStart = now;
+    while (target - now > 0) {
+      if (Thread.currentThread().isInterrupted()) {
+        break; // parkNanos() would return at once, do not spin while holding the monitor
+      }
+      LockSupport.parkNanos(this, target - now);
+      now = System.nanoTime();
+    }
+    batchWaitNanos += now - waitStart;
+    return now;
+  }
+}
@@ -0,0 +1,102 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder for Matriarch parameter Sysex messages without per-message allocation:
+ * patches parameter, value and unit bytes into per-thread templates or into a
+ * caller-supplied buffer.
+ */
+public abstract class SysexEncoder {
+  /** length of a fetch/store parameter message */
+  public static final int MESSAGE_LENGTH = 17;
+  /** command byte of a "fetch parameter" message */
+  public static final byte CMD_FETCH = 0x3e;
+  /** command byte of a "store parameter" message (and of the answer to fetch) */
+  public static final byte CMD_STORE = 0x23;
+  /** byte offset of command */
+  private static final int OFS_COMMAND = 3;
+  /** byte offset of parameter ID */
+  private static final int OFS_PARAM = 4;
+  /** byte offset of value MSB */
+  private static final int OFS_VALUE_MSB = 5;
+  /** byte offset of value LSB */
+  private static final int OFS_VALUE_LSB = 6;
+  /** byte offset of unit ID */
+  private static final int OFS_UNIT = 15;
+  
+  /** per-thread template for fetch messages */
+  private static final ThreadLocal<byte[]> fetchTemplate = ThreadLocal.withInitial(() -> newTemplate(CMD_FETCH));
+  /** per-thread template for store messages */
+  private static final ThreadLocal<byte[]> storeTemplate = ThreadLocal.withInitial(() -> newTemplate(CMD_STORE));
+  
+  /** create an empty message with the given command:
+   * F0 04 17 [command] 00 00 00 00 00 00 00 00 00 00 00 00 F7 */
+  private static byte[] newTemplate(final byte command) {
+    final byte[] msg = new byte[MESSAGE_LENGTH];
+    msg[0] = (byte)0xf0;
+    msg[1] = 0x04;
+    msg[2] = 0x17;
+    msg[OFS_COMMAND] = command;
+    msg[MESSAGE_LENGTH - 1] = (byte)0xf7;
+    return msg;
+  }
+  
+  /** get a "fetch parameter" message in the per-thread template:
+   * F0 04 17 3E [Parameter ID] 00 00 00 00 00 00 00 00 00 00 [Unit ID] F7
+   * <p>The returned array is only valid until the next call on the same thread. */
+  public static byte[] fetchTemplate(final byte paramId, final byte unitId) {
+    final byte[] msg = fetchTemplate.get();
+    msg[OFS_PARAM] = paramId;
+    msg[OFS_UNIT] = unitId;
+    return msg;
+  }
+  
+  /** get a "store parameter" message in the per-thread template:
+   * F0 04 17 23 [Parameter ID], [value MSB], [value LSB], 00 00 00 00 00 00 00 00 [Unit ID] F7
+   * <p>The returned array is only valid until the next call on the same thread. */
+  public static byte[] storeTemplate(final byte paramId, final int value, final byte unitId) {
+    final byte[] msg = storeTemplate.get();
+    msg[OFS_PARAM] = paramId;
+    msg[OFS_VALUE_MSB] = (byte)((value >> 7) & 0x7f);
+    msg[OFS_VALUE_LSB] = (byte)(value & 0x7f);
+    msg[OFS_UNIT] = unitId;
+    return msg;
+  }
+  
+  /** write a "fetch parameter" message to buf (at its current position) */
+  public static void putFetch(final ByteBuffer buf, final byte paramId, final byte unitId) {
+    buf.put(fetchTemplate(paramId, unitId));
+  }
+  
+  /** write a "store parameter" message to buf (at its current position) */
+  public static void putStore(final ByteBuffer buf, final byte paramId, final int value, final byte unitId) {
+    buf.put(storeTemplate(paramId, value, unitId));
+  }
+}
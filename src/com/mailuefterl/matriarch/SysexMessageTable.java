@@ -0,0 +1,138 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+
+import javax.sound.midi.SysexMessage;
+
+import com.mailuefterl.matriarch.parameter.Parameter;
+import com.mailuefterl.matriarch.parameter.ParameterChoiceValue;
+
+/**
+ * Precomputed fetch and store messages for one Matriarch unit: one fetch message
+ * per parameter and one store message for every legal (parameter, value) pair of
+ * the loaded parameter definitions. The messages are shared by all senders, so they
+ * are read-only: setMessage() throws an UnsupportedOperationException (getMessage()
+ * and clone() return copies, as for every MidiMessage).
+ */
+public class SysexMessageTable {
+  /** number of possible parameter IDs */
+  private final static int NUM_IDS = 128;
+  
+  /** unit ID the messages are addressed to */
+  private final byte unitId;
+  /** fetch messages, indexed by parameter ID */
+  private final SysexMessage[] fetchMessages = new SysexMessage[NUM_IDS];
+  /** store messages, indexed by parameter ID and (value - storeOffset[parameter ID]) */
+  private final SysexMessage[][] storeMessages = new SysexMessage[NUM_IDS][];
+  /** lowest legal value for each parameter ID */
+  private final int[] storeOffset = new int[NUM_IDS];
+  
+  /** constructor, creates all messages for the given parameters */
+  public SysexMessageTable(final byte unitId, final List<Parameter> params) {
+    this.unitId = unitId;
+    for (final Parameter param: params) {
+      final int id = param.midiNumber;
+      if (id < 0) {
+        continue;
+      }
+      fetchMessages[id] = createMessage(SysexEncoder.fetchTemplate(param.midiNumber, unitId));
+      if (param.isRange()) {
+        final int min = param.getRange().rangeMin;
+        final int max = param.getRange().rangeMax;
+        final SysexMessage[] msgs = new SysexMessage[max - min + 1];
+        for (int val = min; val <= max; val++) {
+          msgs[val - min] = createMessage(SysexEncoder.storeTemplate(param.midiNumber, val, unitId));
+        }
+        storeMessages[id] = msgs;
+        storeOffset[id] = min;
+      } else if (!param.getChoices().isEmpty()) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (final ParameterChoiceValue choice: param.getChoices()) {
+          min = Math.min(min, choice.number);
+          max = Math.max(max, choice.number);
+        }
+        final SysexMessage[] msgs = new SysexMessage[max - min + 1];
+        for (final ParameterChoiceValue choice: param.getChoices()) {
+          msgs[choice.number - min] = createMessage(SysexEncoder.storeTemplate(param.midiNumber, choice.number, unitId));
+        }
+        storeMessages[id] = msgs;
+        storeOffset[id] = min;
+      }
+    }
+  }
+  
+  /** get unit ID the messages in this table are addressed to */
+  public byte getUnitId() {
+    return unitId;
+  }
+  
+  /** get the fetch message for a parameter (null if parameter is unknown) */
+  public SysexMessage getFetchMessage(final byte paramId) {
+    return (paramId < 0) ? null : fetchMessages[paramId];
+  }
+  
+  /** get the store message for a parameter and value (null if the pair is not legal) */
+  public SysexMessage getStoreMessage(final byte paramId, final int value) {
+    if (paramId < 0) {
+      return null;
+    }
+    final SysexMessage[] msgs = storeMessages[paramId];
+    final int idx = value - storeOffset[paramId];
+    if ((msgs == null) || (idx < 0) || (idx >= msgs.length)) {
+      return null;
+    }
+    return msgs[idx];
+  }
+  
+  /** helper: copy template data into a new read-only SysexMessage (templates are reused by SysexEncoder) */
+  private static SysexMessage createMessage(final byte[] template) {
+    return new ReadOnlySysexMessage(template.clone());
+  }
+  
+  /** Sysex message whose data cannot be replaced */
+  private static final class ReadOnlySysexMessage extends SysexMessage {
+    /** constructor, data (a complete message from SysexEncoder) is used without copying or validation */
+    private ReadOnlySysexMessage(final byte[] data) {
+      super(data);
+    }
+    
+    /** not supported, the message is shared */
+    @Override
+    public void setMessage(final byte[] data, final int length) {
+      throw new UnsupportedOperationException("precomputed Sysex message is read-only");
+    }
+    
+    /** not supported, the message is shared */
+    @Override
+    public void setMessage(final int status, final byte[] data, final int length) {
+      throw new UnsupportedOperationException("precomputed Sysex message is read-only");
+    }
+  }
+}
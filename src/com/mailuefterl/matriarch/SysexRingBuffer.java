@@ -0,0 +1,178 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer ring buffer for incoming Sysex messages.
+ * Messages are copied into preallocated slots of SLOT_SIZE bytes, so neither
+ * offer() nor poll() allocates memory or takes a monitor. The consumer thread
+ * is parked while the ring is empty and unparked by the producer.
+ * A consumer may serve a second ring (with its own producer), see
+ * SysexRingBuffer(int, SysexRingBuffer) and poll(byte[], long, SysexRingBuffer).
+ */
+public class SysexRingBuffer {
+  /** size of one slot (length of a Matriarch parameter message) */
+  public static final int SLOT_SIZE = 17;
+  /** added to the length returned by poll(byte[], long, SysexRingBuffer) for messages of the secondary ring */
+  public static final int FROM_SECONDARY = 0x10000;
+  
+  /** message data of all slots, slot i starts at i*SLOT_SIZE */
+  private final byte[] slotData;
+  /** message length of each slot */
+  private final int[] slotLength;
+  /** number of slots - 1 (number of slots is a power of 2) */
+  private final int mask;
+  /** sequence number of next slot to read (only advanced by consumer) */
+  private final AtomicLong head = new AtomicLong();
+  /** sequence number of next slot to write (only advanced by producer) */
+  private final AtomicLong tail = new AtomicLong();
+  /** ring whose consumer is unparked by offer() (this, unless it shares a consumer) */
+  private final SysexRingBuffer consumerRing;
+  /** consumer thread currently parked in poll(), or null */
+  private volatile Thread waiter;
+  /** number of messages dropped because the ring was full (written by producer only) */
+  private volatile long numOverflow;
+  /** number of messages dropped because they did not fit in a slot (written by producer only) */
+  private volatile long numOversize;
+  
+  /** constructor, capacity is rounded up to the next power of 2 */
+  public SysexRingBuffer(final int capacity) {
+    this(capacity, null);
+  }
+  
+  /** constructor for a ring that is drained by the consumer of primary, whose
+   * poll(byte[], long, SysexRingBuffer) is woken by offers to this ring */
+  public SysexRingBuffer(final int capacity, final SysexRingBuffer primary) {
+    consumerRing = (primary == null) ? this : primary;
+    int slots = 1;
+    while (slots < capacity) {
+      slots <<= 1;
+    }
+    mask = slots - 1;
+    slotData = new byte[slots * SLOT_SIZE];
+    slotLength = new int[slots];
+  }
+  
+  /** copy a message into the next free slot (producer side).
+   * Returns false if the message was dropped (ring full or message too long). */
+  public boolean offer(final byte[] data, final int length) {
+    if (length > SLOT_SIZE) {
+      numOversize++;
+      return false;
+    }
+    final long t = tail.get();
+    if (t - head.get() > mask) {
+      numOverflow++;
+      return false;
+    }
+    final int slot = (int)t & mask;
+    System.arraycopy(data, 0, slotData, slot * SLOT_SIZE, length);
+    slotLength[slot] = length;
+    tail.set(t + 1);
+    final Thread w = consumerRing.waiter;
+    if (w != null) {
+      LockSupport.unpark(w);
+    }
+    return true;
+  }
+  
+  /** check whether the ring is full, i.e. offer() would drop a message (producer side) */
+  public boolean isFull() {
+    return tail.get() - head.get() > mask;
+  }
+  
+  /** copy the next message into dest (consumer side), waiting until deadline
+   * [System.nanoTime()] at most. Returns the message length, or -1 on timeout. */
+  public int poll(final byte[] dest, final long deadline) {
+    return poll(dest, deadline, null);
+  }
+  
+  /** copy the next message of this ring or, if it is empty, of secondary (may be null) into dest
+   * (consumer side of both rings), waiting until deadline [System.nanoTime()] at most.
+   * secondary must have been created with this ring as primary. Returns the message length
+   * (plus FROM_SECONDARY if the message came from secondary), or -1 on timeout. */
+  public int poll(final byte[] dest, final long deadline, final SysexRingBuffer secondary) {
+    while (true) {
+      int length = tryPoll(dest);
+      if ((length < 0) && (secondary != null)) {
+        length = secondary.tryPoll(dest);
+        if (length >= 0) {
+          return length + FROM_SECONDARY;
+        }
+      }
+      if (length >= 0) {
+        return length;
+      }
+      final long timeLeft = deadline - System.nanoTime();
+      if (timeLeft <= 0) {
+        return -1;
+      }
+      waiter = Thread.currentThread();
+      if (isEmpty() && ((secondary == null) || secondary.isEmpty())) {
+        LockSupport.parkNanos(this, timeLeft);
+      }
+      waiter = null;
+    }
+  }
+  
+  /** copy the next message into dest without waiting (consumer side).
+   * Returns the message length, or -1 if the ring is empty. */
+  private int tryPoll(final byte[] dest) {
+    final long h = head.get();
+    if (h >= tail.get()) {
+      return -1;
+    }
+    final int slot = (int)h & mask;
+    final int length = slotLength[slot];
+    System.arraycopy(slotData, slot * SLOT_SIZE, dest, 0, length);
+    head.lazySet(h + 1);
+    return length;
+  }
+  
+  /** check whether the ring is empty */
+  private boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+  
+  /** discard all buffered messages (consumer side) */
+  public void clear() {
+    head.lazySet(tail.get());
+  }
+  
+  /** number of messages dropped because the ring was full */
+  public long getNumOverflow() {
+    return numOverflow;
+  }
+  
+  /** number of messages dropped because they were longer than SLOT_SIZE */
+  public long getNumOversize() {
+    return numOversize;
+  }
+}
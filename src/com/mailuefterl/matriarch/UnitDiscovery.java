@@ -0,0 +1,215 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Background service that keeps the list of Matriarch units on the MIDI bus up
+ * to date: probes on request (port change, hotplug) and periodically, and
+ * publishes the list to its listeners whenever a unit answers or disappears.
+ * A unit disappears when it misses an explicit probe, or several periodic probes
+ * in a row (a single lost answer must not drop the selected unit).
+ * Never blocks the caller.
+ */
+public class UnitDiscovery {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  
+  /** MIDI handler to probe with */
+  private final MatSwitchMidi midi;
+  /** time between periodic probes [msec], 0 to disable */
+  private final long intervalMillis;
+  /** number of periodic probes in a row a unit must miss to be removed */
+  private final int maxMissed;
+  /** listeners notified of every change of the unit list */
+  private final List<Consumer<List<MatriarchUnit>>> listeners = new CopyOnWriteArrayList<Consumer<List<MatriarchUnit>>>();
+  /** units currently known (guarded by this) */
+  private List<MatriarchUnit> units = new ArrayList<MatriarchUnit>(0);
+  /** probe in progress, null if none (guarded by this) */
+  private CompletableFuture<List<MatriarchUnit>> currentProbe;
+  /** was the current probe requested explicitly (not periodic)? (guarded by this) */
+  private boolean currentExplicit;
+  /** number of periodic probes in a row each known unit missed (guarded by this) */
+  private final Map<Byte, Integer> numMissed = new HashMap<Byte, Integer>();
+  /** incremented by reset(), results of earlier probes are ignored (guarded by this) */
+  private int generation;
+  /** has periodic probing been started? */
+  private volatile boolean started;
+  
+  /** constructor
+   * @param maxMissed number of periodic probes in a row a unit must miss to be removed */
+  public UnitDiscovery(final MatSwitchMidi midi, final long intervalMillis, final int maxMissed) {
+    this.midi = midi;
+    this.intervalMillis = intervalMillis;
+    this.maxMissed = Math.max(1, maxMissed);
+  }
+  
+  /** add a listener that is notified with the new list whenever units are found or disappear */
+  public void addListener(final Consumer<List<MatriarchUnit>> listener) {
+    listeners.add(listener);
+  }
+  
+  /** get the units currently known */
+  public synchronized List<MatriarchUnit> getUnits() {
+    return units;
+  }
+  
+  /** start probing periodically (every intervalMillis, skipped while parameters are being fetched) */
+  public void start() {
+    if (!started && (intervalMillis > 0)) {
+      started = true;
+      scheduleNextProbe();
+    }
+  }
+  
+  /** forget all units (e.g. after the MIDI interface changed) */
+  public void reset() {
+    synchronized(this) {
+      generation++;
+      currentProbe = null;
+      numMissed.clear();
+      if (units.isEmpty()) {
+        return;
+      }
+      units = Collections.emptyList();
+    }
+    publish(Collections.<MatriarchUnit>emptyList());
+  }
+  
+  /** probe the bus, unless a probe is already in progress. The future completes
+   * with the units found when the probe ends; units that did not answer are removed. */
+  public synchronized CompletableFuture<List<MatriarchUnit>> probe() {
+    return probe(true);
+  }
+  
+  /** probe the bus, unless a probe is already in progress (which then counts as explicit if
+   * explicit is set). Units that did not answer an explicit probe are removed, those that did not
+   * answer a non-explicit (e.g. periodic) probe only after maxMissed misses in a row. */
+  public synchronized CompletableFuture<List<MatriarchUnit>> probe(final boolean explicit) {
+    if ((currentProbe != null) && !currentProbe.isDone()) {
+      currentExplicit |= explicit;
+      return currentProbe;
+    }
+    if (!midi.isConnected()) {
+      return CompletableFuture.completedFuture(units);
+    }
+    final int probeGeneration = generation;
+    currentExplicit = explicit;
+    currentProbe = midi.discoverUnitsAsync(unit -> unitFound(probeGeneration, unit))
+            .thenApply(found -> probeDone(probeGeneration, found));
+    return currentProbe;
+  }
+  
+  /** a unit answered a probe (called in receive thread) */
+  private void unitFound(final int probeGeneration, final MatriarchUnit unit) {
+    final List<MatriarchUnit> newUnits;
+    synchronized(this) {
+      if (probeGeneration != generation) {
+        return;
+      }
+      numMissed.remove(unit.getUnitId());
+      if (indexOf(units, unit.getUnitId()) >= 0) {
+        return;
+      }
+      newUnits = new ArrayList<MatriarchUnit>(units);
+      newUnits.add(unit);
+      units = Collections.unmodifiableList(newUnits);
+    }
+    publish(newUnits);
+  }
+  
+  /** a probe ended, remove units that did not answer (often enough) */
+  private List<MatriarchUnit> probeDone(final int probeGeneration, final List<MatriarchUnit> found) {
+    final List<MatriarchUnit> newUnits = new ArrayList<MatriarchUnit>(found.size());
+    synchronized(this) {
+      if (probeGeneration != generation) {
+        return units;
+      }
+      for (final MatriarchUnit unit: units) {
+        if (indexOf(found, unit.getUnitId()) >= 0) {
+          newUnits.add(unit);
+          continue;
+        }
+        final int missed = numMissed.getOrDefault(unit.getUnitId(), 0) + 1;
+        if (!currentExplicit && (missed < maxMissed)) {
+          log.info(unit, " did not answer (", missed, " of ", maxMissed, " probes in a row)");
+          numMissed.put(unit.getUnitId(), missed);
+          newUnits.add(unit);
+        }
+        else {
+          numMissed.remove(unit.getUnitId());
+        }
+      }
+      if (newUnits.size() == units.size()) {
+        return units;
+      }
+      log.info("Matriarch units disappeared from MIDI bus, now ", newUnits);
+      units = Collections.unmodifiableList(newUnits);
+    }
+    publish(newUnits);
+    return newUnits;
+  }
+  
+  /** notify all listeners of a new unit list */
+  private void publish(final List<MatriarchUnit> newUnits) {
+    final List<MatriarchUnit> ro = Collections.unmodifiableList(newUnits);
+    for (final Consumer<List<MatriarchUnit>> listener: listeners) {
+      listener.accept(ro);
+    }
+  }
+  
+  /** schedule the next periodic probe */
+  private void scheduleNextProbe() {
+    midi.delay(intervalMillis).thenRun(() -> {
+      if (midi.isConnected() && !midi.hasPendingFetches()) {
+        probe(false);
+      }
+      scheduleNextProbe();
+    });
+  }
+  
+  /** index of the unit with the given unitId in a list, -1 if not found */
+  private static int indexOf(final List<MatriarchUnit> list, final byte unitId) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i).getUnitId() == unitId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
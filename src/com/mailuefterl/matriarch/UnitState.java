@@ -0,0 +1,117 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Last known parameter values of one Matriarch unit, indexed by parameter ID
+ * (Parameter.midiNumber), with the time and source of each value. Thread safe.
+ */
+public class UnitState {
+  /** number of possible parameter IDs */
+  private static final int NUM_IDS = 128;
+  
+  /** where a value came from (LOADED: from the state file of an earlier run, not yet revalidated) */
+  public enum Source { FETCHED, STORED, VERIFIED, LOADED }
+  
+  /** unit ID */
+  private final byte unitId;
+  /** parameter values, -1 if unknown */
+  private final int[] values = new int[NUM_IDS];
+  /** time each value was set [System.currentTimeMillis()] */
+  private final long[] timestamps = new long[NUM_IDS];
+  /** source of each value, null if unknown */
+  private final Source[] sources = new Source[NUM_IDS];
+  
+  /** constructor (all values unknown) */
+  public UnitState(final byte unitId) {
+    this.unitId = unitId;
+    Arrays.fill(values, -1);
+  }
+  
+  /** get unit ID */
+  public byte getUnitId() {
+    return unitId;
+  }
+  
+  /** set the value of a parameter, timestamped now */
+  public void setValue(final byte paramId, final int value, final Source source) {
+    setValue(paramId, value, source, System.currentTimeMillis());
+  }
+  
+  /** set the value of a parameter with the given timestamp */
+  public synchronized void setValue(final byte paramId, final int value, final Source source, final long timestamp) {
+    if (paramId >= 0) {
+      values[paramId] = value;
+      sources[paramId] = source;
+      timestamps[paramId] = timestamp;
+    }
+  }
+  
+  /** get the value of a parameter, -1 if unknown */
+  public synchronized int getValue(final byte paramId) {
+    return (paramId < 0) ? -1 : values[paramId];
+  }
+  
+  /** get the time the value of a parameter was set, 0 if unknown */
+  public synchronized long getTimestamp(final byte paramId) {
+    return ((paramId < 0) || (values[paramId] < 0)) ? 0 : timestamps[paramId];
+  }
+  
+  /** get the source of the value of a parameter, null if unknown */
+  public synchronized Source getSource(final byte paramId) {
+    return ((paramId < 0) || (values[paramId] < 0)) ? null : sources[paramId];
+  }
+  
+  /** is any value loaded from a state file and not yet revalidated? */
+  public synchronized boolean hasLoadedValues() {
+    for (int i = 0; i < NUM_IDS; i++) {
+      if ((values[i] >= 0) && (sources[i] == Source.LOADED)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /** get the time of the oldest known value, 0 if none is known */
+  public synchronized long getOldestTimestamp() {
+    long oldest = 0;
+    for (int i = 0; i < NUM_IDS; i++) {
+      if ((values[i] >= 0) && ((oldest == 0) || (timestamps[i] < oldest))) {
+        oldest = timestamps[i];
+      }
+    }
+    return oldest;
+  }
+  
+  /** forget all values */
+  public synchronized void clear() {
+    Arrays.fill(values, -1);
+    Arrays.fill(sources, null);
+  }
+}
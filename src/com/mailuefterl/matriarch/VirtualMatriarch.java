@@ -0,0 +1,414 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiDeviceReceiver;
+import javax.sound.midi.MidiDeviceTransmitter;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Transmitter;
+
+import com.mailuefterl.matriarch.parameter.Parameter;
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * In-process emulation of one or more Matriarch units on a MIDI bus, usable as
+ * MIDI in and out port. Implements the fetch (3E) and store (23) parameter Sysex
+ * messages with configurable latency, jitter, processing rate and input buffer
+ * size, and can mimic the firmware 1.2.0 bug of not sending the unitId.
+ * The same instance serves as in and out port, so open() and close() are counted:
+ * the device stays open until it has been closed as often as it was opened.
+ * Allows testing and benchmarking the MIDI code without hardware.
+ */
+public class VirtualMatriarch implements MidiDevice {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  /** number of possible parameter IDs */
+  private final static int NUM_IDS = 128;
+  /** broadcast unit ID */
+  private final static byte BROADCAST_ID = 0x7f;
+  /** min. time between two answers [nsec] (keeps answers in order despite jitter) */
+  private final static long ANSWER_SPACING_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  
+  /** device information */
+  private final MidiDevice.Info info;
+  /** emulated unit IDs */
+  private final byte[] unitIds;
+  /** parameter values per emulated unit (written by executor thread, read by any thread) */
+  private final AtomicIntegerArray[] values;
+  /** answer delay [nsec] */
+  private final long latencyNanos;
+  /** max. random additional answer delay [nsec] */
+  private final long jitterNanos;
+  /** time to process one message [nsec], 0 for unlimited processing rate */
+  private final long processNanos;
+  /** max. number of messages waiting to be processed (more are dropped) */
+  private final int bufferSize;
+  /** mimic firmware 1.2.0 (answers without unitId) */
+  private final boolean legacyFirmware;
+  /** thread that processes messages and sends answers */
+  private final ScheduledThreadPoolExecutor executor;
+  /** receivers of our transmitters (i.e. where answers go) */
+  private final List<VirtualTransmitter> transmitters = new CopyOnWriteArrayList<VirtualTransmitter>();
+  /** number of messages waiting to be processed */
+  private final AtomicInteger numQueued = new AtomicInteger();
+  /** number of messages dropped because the input buffer was full */
+  private final AtomicLong numDropped = new AtomicLong();
+  /** number of messages processed */
+  private final AtomicLong numProcessed = new AtomicLong();
+  /** time the last message was processed [System.nanoTime()] (only used in executor thread) */
+  private long lastProcessed;
+  /** time the last answer was sent [System.nanoTime()] (only used in executor thread) */
+  private long lastAnswer;
+  /** number of open() calls not yet matched by close() (open while > 0) */
+  private final AtomicInteger openCount = new AtomicInteger();
+  
+  /** constructor
+   * @param unitIds IDs of the emulated units
+   * @param params parameter definitions (to initialize values with defaults), may be null
+   * @param latencyMicros delay of each answer
+   * @param jitterMicros max. random additional delay of each answer
+   * @param messagesPerSecond processing rate limit, <= 0 for unlimited
+   * @param bufferSize number of messages that can wait for processing
+   * @param legacyFirmware true to mimic firmware 1.2.0 (answers without unitId) */
+  public VirtualMatriarch(final byte[] unitIds, final List<Parameter> params,
+          final long latencyMicros, final long jitterMicros, final int messagesPerSecond,
+          final int bufferSize, final boolean legacyFirmware) {
+    this.unitIds = unitIds.clone();
+    this.values = new AtomicIntegerArray[unitIds.length];
+    for (int u = 0; u < unitIds.length; u++) {
+      values[u] = new AtomicIntegerArray(NUM_IDS);
+      if (params != null) {
+        for (final Parameter param: params) {
+          if (param.midiNumber >= 0) {
+            values[u].set(param.midiNumber, param.getDefaultValue().getNumber());
+          }
+        }
+      }
+      values[u].set(0, unitIds[u]); // parameter 0 is the unit ID
+    }
+    this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, latencyMicros));
+    this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, jitterMicros));
+    this.processNanos = (messagesPerSecond > 0) ? TimeUnit.SECONDS.toNanos(1) / messagesPerSecond : 0;
+    this.bufferSize = Math.max(1, bufferSize);
+    this.legacyFirmware = legacyFirmware;
+    this.info = new VirtualInfo(unitIds.length);
+    executor = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread t = new Thread(r, "VirtualMatriarch");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+  
+  /** create a virtual Matriarch configured by MatProperty settings, or null if
+   * MatSwitch.midi.virtual (comma-separated list of unit IDs) is not set */
+  public static VirtualMatriarch fromProperties(final List<Parameter> params) {
+    final String ids = MatProperty.MIDI_VIRTUAL.getProperty();
+    if ((ids == null) || ids.trim().isEmpty()) {
+      return null;
+    }
+    final List<Byte> unitIds = new ArrayList<Byte>();
+    for (final String id: ids.split(",")) {
+      try {
+        unitIds.add(Byte.parseByte(id.trim()));
+      }
+      catch (final NumberFormatException e) {
+        log.error("Invalid unit ID for virtual Matriarch: ", id);
+      }
+    }
+    final byte[] idArray = new byte[unitIds.size()];
+    for (int i = 0; i < idArray.length; i++) {
+      idArray[i] = unitIds.get(i);
+    }
+    return new VirtualMatriarch(idArray, params,
+            MatProperty.MIDI_VIRTUAL_LATENCY.getProperty(2000L),
+            MatProperty.MIDI_VIRTUAL_JITTER.getProperty(500L),
+            MatProperty.MIDI_VIRTUAL_RATE.getProperty(1000),
+            MatProperty.MIDI_VIRTUAL_BUFFER.getProperty(64),
+            Boolean.parseBoolean(MatProperty.MIDI_VIRTUAL_LEGACY.getProperty("false")));
+  }
+  
+  /** get the current value of a parameter of an emulated unit, -1 if unit is unknown */
+  public int getValue(final byte unitId, final byte paramId) {
+    final int u = indexOf(unitId);
+    return (u < 0) ? -1 : values[u].get(paramId);
+  }
+  
+  /** get the number of messages dropped because the input buffer was full */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+  
+  /** get the number of messages processed */
+  public long getNumProcessed() {
+    return numProcessed.get();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Info getDeviceInfo() {
+    return info;
+  }
+
+  /** {@inheritDoc} (counted, see close()) */
+  @Override
+  public void open() {
+    openCount.incrementAndGet();
+  }
+
+  /** {@inheritDoc} The device is only closed when close() has been called as often as open(),
+   * so that closing it as in port does not close it as out port. */
+  @Override
+  public void close() {
+    openCount.getAndUpdate(n -> Math.max(0, n - 1));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isOpen() {
+    return openCount.get() > 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getMicrosecondPosition() {
+    return -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getMaxReceivers() {
+    return -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getMaxTransmitters() {
+    return -1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Receiver getReceiver() {
+    return new VirtualReceiver();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<Receiver> getReceivers() {
+    return new ArrayList<Receiver>(0);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Transmitter getTransmitter() {
+    final VirtualTransmitter tx = new VirtualTransmitter();
+    transmitters.add(tx);
+    return tx;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<Transmitter> getTransmitters() {
+    return new ArrayList<Transmitter>(transmitters);
+  }
+  
+  /** string representation */
+  @Override
+  public String toString() {
+    return info.getName();
+  }
+  
+  /** accept an incoming message: copy it and queue it for processing (drop it if buffer is full) */
+  private void receive(final MidiMessage message) {
+    if (!isOpen() || !(message instanceof SysexMessage)) {
+      return;
+    }
+    if (numQueued.incrementAndGet() > bufferSize) {
+      numQueued.decrementAndGet();
+      numDropped.incrementAndGet();
+      return;
+    }
+    final byte[] data = message.getMessage();
+    executor.execute(() -> scheduleProcessing(data));
+  }
+  
+  /** schedule processing of a message according to the processing rate (runs in executor thread) */
+  private void scheduleProcessing(final byte[] data) {
+    final long now = System.nanoTime();
+    final long processAt = Math.max(now, lastProcessed + processNanos);
+    lastProcessed = processAt;
+    executor.schedule(() -> process(data), processAt - now, TimeUnit.NANOSECONDS);
+  }
+  
+  /** process a fetch or store message (runs in executor thread) */
+  private void process(final byte[] data) {
+    numQueued.decrementAndGet();
+    numProcessed.incrementAndGet();
+    if ((data.length != SysexEncoder.MESSAGE_LENGTH) || (data[1] != 0x04) || (data[2] != 0x17)) {
+      return;
+    }
+    final byte paramId = data[4];
+    final byte unitId = data[15];
+    if (paramId < 0) {
+      return;
+    }
+    for (int u = 0; u < unitIds.length; u++) {
+      if ((unitId != unitIds[u]) && (unitId != BROADCAST_ID)) {
+        continue;
+      }
+      if ((data[3] == SysexEncoder.CMD_STORE) && (data[14] == 0)) {
+        values[u].set(paramId, data[5] * 128 + data[6]);
+      } else if (data[3] == SysexEncoder.CMD_FETCH) {
+        sendAnswer(unitIds[u], paramId, values[u].get(paramId));
+      }
+    }
+  }
+  
+  /** send an answer to all transmitters after latency and jitter, keeping the order of answers
+   * (runs in executor thread) */
+  private void sendAnswer(final byte unitId, final byte paramId, final int value) {
+    final byte[] answer = Arrays.copyOf(SysexEncoder.storeTemplate(paramId, value, unitId), SysexEncoder.MESSAGE_LENGTH);
+    answer[14] = 1; // reply flag
+    final int length;
+    if (legacyFirmware) {
+      answer[15] = (byte)0xf7;
+      length = SysexEncoder.MESSAGE_LENGTH - 1;
+    } else {
+      length = SysexEncoder.MESSAGE_LENGTH;
+    }
+    final SysexMessage msg;
+    try {
+      msg = new SysexMessage(answer, length);
+    }
+    catch (final InvalidMidiDataException e) {
+      log.error("Internal error in VirtualMatriarch: ", e);
+      return;
+    }
+    final long now = System.nanoTime();
+    final long jitter = (jitterNanos > 0) ? ThreadLocalRandom.current().nextLong(jitterNanos + 1) : 0;
+    final long sendAt = Math.max(lastAnswer + ANSWER_SPACING_NANOS, now + latencyNanos + jitter);
+    lastAnswer = sendAt;
+    executor.schedule(() -> {
+      for (final VirtualTransmitter tx: transmitters) {
+        tx.transmit(msg);
+      }
+    }, sendAt - now, TimeUnit.NANOSECONDS);
+  }
+  
+  /** index of an emulated unit, -1 if not emulated */
+  private int indexOf(final byte unitId) {
+    for (int u = 0; u < unitIds.length; u++) {
+      if (unitIds[u] == unitId) {
+        return u;
+      }
+    }
+    return -1;
+  }
+  
+  /** receiver for messages sent to the virtual Matriarch */
+  private final class VirtualReceiver implements MidiDeviceReceiver {
+    /** {@inheritDoc} */
+    @Override
+    public void send(final MidiMessage message, final long timeStamp) {
+      receive(message);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+      // nada
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MidiDevice getMidiDevice() {
+      return VirtualMatriarch.this;
+    }
+  }
+  
+  /** transmitter for answers of the virtual Matriarch */
+  private final class VirtualTransmitter implements MidiDeviceTransmitter {
+    /** where to send answers */
+    private volatile Receiver receiver;
+    
+    /** send an answer to our receiver (if open) */
+    private void transmit(final MidiMessage msg) {
+      final Receiver rx = receiver;
+      if (isOpen() && (rx != null)) {
+        rx.send(msg, -1);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setReceiver(final Receiver receiver) {
+      this.receiver = receiver;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Receiver getReceiver() {
+      return receiver;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+      transmitters.remove(this);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MidiDevice getMidiDevice() {
+      return VirtualMatriarch.this;
+    }
+  }
+  
+  /** device information for the virtual Matriarch */
+  private static final class VirtualInfo extends MidiDevice.Info {
+    /** constructor */
+    private VirtualInfo(final int numUnits) {
+      super("Virtual Matriarch", "MatriarchSwitch", "Emulation of "+ numUnits +" Matriarch unit(s)", "1.0");
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.mailuefterl.matriarch;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mailuefterl.matriarch.parameter.IParameterValue;
+import com.mailuefterl.matriarch.parameter.Parameter;
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager;
+
+/**
+ * Write-behind queue for live edits: parameter values are stored to Matriarch
+ * one after the other, at least minIntervalMillis apart. Repeated edits of a
+ * parameter that has not been sent yet are coalesced, so only the latest value
+ * goes out (in the position of the first edit). Thread safe.
+ */
+public class WriteBehindQueue {
+  /** logger */
+  private final static ILogger log = LogManager.getLogger();
+  
+  /** MIDI handler to send with */
+  private final MatSwitchMidi midi;
+  /** min. time between two stores [msec] */
+  private final long minIntervalMillis;
+  /** values waiting to be sent, in order of first edit (guarded by this) */
+  private final Map<Parameter, PendingStore> pending = new LinkedHashMap<Parameter, PendingStore>();
+  /** is a store in progress (guarded by this) */
+  private boolean sending;
+  /** value currently being stored (guarded by this) */
+  private PendingStore inFlight;
+  /** number of edits submitted (guarded by this) */
+  private int numSubmitted;
+  /** number of edits replaced by a later one before sending (guarded by this) */
+  private int numCoalesced;
+  
+  /** constructor */
+  public WriteBehindQueue(final MatSwitchMidi midi, final long minIntervalMillis) {
+    this.midi = midi;
+    this.minIntervalMillis = Math.max(0, minIntervalMillis);
+  }
+  
+  /** queue a value to be stored (replacing a value for the same parameter that was not sent yet) */
+  public void submit(final Parameter param, final UnitState state, final IParameterValue value) {
+    synchronized(this) {
+      numSubmitted++;
+      if (pending.put(param, new PendingStore(param, state, value)) != null) {
+        numCoalesced++;
+      }
+      if (sending) {
+        return;
+      }
+      sending = true;
+    }
+    sendNext();
+  }
+  
+  /** is a value for this parameter waiting to be sent or being sent? */
+  public synchronized boolean isQueued(final Parameter param) {
+    return pending.containsKey(param) || ((inFlight != null) && (inFlight.param == param));
+  }
+  
+  /** drop all values that were not sent yet */
+  public synchronized void clear() {
+    pending.clear();
+  }
+  
+  /** send the oldest pending value, then schedule the next one after minIntervalMillis */
+  private void sendNext() {
+    final PendingStore ps;
+    synchronized(this) {
+      final Iterator<PendingStore> it = pending.values().iterator();
+      if (!it.hasNext()) {
+        log.debug("Live edit: sent ", numSubmitted - numCoalesced, " of ", numSubmitted, " edits (", numCoalesced, " coalesced)");
+        sending = false;
+        inFlight = null;
+        return;
+      }
+      ps = it.next();
+      it.remove();
+      inFlight = ps;
+    }
+    midi.storeParameterAsync(ps.state.getUnitId(), ps.param.midiNumber, ps.value.getNumber()).thenCompose(ok -> {
+      if (ok) {
+        log.info("Live edit: stored Parameter ", ps.param, " = ", ps.value);
+        ps.state.setValue(ps.param.midiNumber, ps.value.getNumber(), UnitState.Source.STORED);
+        if (ps.value.equals(ps.param.getCurrentValue())) {
+          ps.param.setRetrievedValue(ps.value);
+        }
+      } else {
+        log.error("Live edit: failed storing Parameter ", ps.param);
+      }
+      return midi.delay(minIntervalMillis);
+    }).whenComplete((v, ex) -> sendNext());
+  }
+  
+  /** a value waiting to be stored */
+  private static final class PendingStore {
+    /** parameter to store */
+    private final Parameter param;
+    /** state of the unit to store to */
+    private final UnitState state;
+    /** value to store */
+    private final IParameterValue value;
+    
+    /** constructor */
+    private PendingStore(final Parameter param, final UnitState state, final IParameterValue value) {
+      this.param = param;
+      this.state = state;
+      this.value = value;
+    }
+  }
+}
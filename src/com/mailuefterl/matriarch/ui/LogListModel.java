@@ -0,0 +1,184 @@
+package com.mailuefterl.matriarch.ui;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+import com.mailuefterl.matriarch.util.ILogger;
+import com.mailuefterl.matriarch.util.LogManager.LogEntry;
+
+/**
+ * List model for the log panel. Keeps the entries of each log type in their own array
+ * (bounded like the log buffer), and the entries of the displayed types merged by sequence
+ * number in another array, so that appending is O(1) per entry and changing the displayed
+ * types is O(number of displayed entries). Must only be used in EDT.
+ */
+public class LogListModel extends AbstractListModel<LogEntry> {
+  /** needed to shut up warning because AbstractListModel is serializable */
+  private static final long serialVersionUID = 1L;
+  
+  /** entries of each type (indexed by ordinal), ordered by sequence number */
+  private final EntryArray[] byType = new EntryArray[ILogger.LogType.values().length];
+  /** displayed types (indexed by ordinal) */
+  private final boolean[] displayed = new boolean[byType.length];
+  /** displayed entries, ordered by sequence number */
+  private EntryArray visible = new EntryArray(0);
+  
+  /** constructor, capacities per type (indexed by ordinal) */
+  public LogListModel(final int[] capacities) {
+    for (int i = 0; i < byType.length; i++) {
+      byType[i] = new EntryArray(capacities[i]);
+    }
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public int getSize() {
+    return visible.size;
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public LogEntry getElementAt(final int index) {
+    return visible.entries[index];
+  }
+  
+  /** check whether entries of a type are displayed */
+  public boolean isDisplayed(final ILogger.LogType type) {
+    return displayed[type.ordinal()];
+  }
+  
+  /** select whether entries of a type are displayed */
+  public void setDisplayed(final ILogger.LogType type, final boolean display) {
+    if (displayed[type.ordinal()] != display) {
+      displayed[type.ordinal()] = display;
+      rebuildVisible();
+    }
+  }
+  
+  /** append new entries (ordered by sequence number, after all entries already in the model) */
+  public void append(final List<LogEntry> entries) {
+    final int oldSize = visible.size;
+    boolean trimmed = false;
+    for (final LogEntry le: entries) {
+      final EntryArray typeEntries = byType[le.type.ordinal()];
+      typeEntries.add(le);
+      trimmed |= typeEntries.trim();
+      if (displayed[le.type.ordinal()]) {
+        visible.add(le);
+      }
+    }
+    if (trimmed) {
+      rebuildVisible();
+    } else if (visible.size > oldSize) {
+      fireIntervalAdded(this, oldSize, visible.size - 1);
+    }
+  }
+  
+  /** remove all entries */
+  public void clear() {
+    for (final EntryArray typeEntries: byType) {
+      typeEntries.clear();
+    }
+    rebuildVisible();
+  }
+  
+  /** merge the entries of the displayed types */
+  private void rebuildVisible() {
+    final int oldSize = visible.size;
+    final int[] pos = new int[byType.length];
+    int total = 0;
+    for (int i = 0; i < byType.length; i++) {
+      if (displayed[i]) {
+        total += byType[i].size;
+      }
+    }
+    final EntryArray merged = new EntryArray(total);
+    while (merged.size < total) {
+      int next = -1;
+      for (int i = 0; i < byType.length; i++) {
+        if (displayed[i] && (pos[i] < byType[i].size) && ((next < 0)
+                || (byType[i].entries[pos[i]].getSequence() < byType[next].entries[pos[next]].getSequence()))) {
+          next = i;
+        }
+      }
+      merged.add(byType[next].entries[pos[next]++]);
+    }
+    visible = merged;
+    if (oldSize > 0) {
+      fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+    if (merged.size > 0) {
+      fireIntervalAdded(this, 0, merged.size - 1);
+    }
+  }
+  
+  /** growable array of entries, trimmed to its capacity (with some slack so trimming is rare) */
+  private static final class EntryArray {
+    /** max. number of entries kept after trimming */
+    private final int capacity;
+    /** entries */
+    private LogEntry[] entries;
+    /** number of entries */
+    private int size;
+    
+    /** constructor */
+    private EntryArray(final int capacity) {
+      this.capacity = capacity;
+      entries = new LogEntry[Math.max(16, Math.min(capacity, 1024))];
+    }
+    
+    /** append an entry */
+    private void add(final LogEntry le) {
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, 2 * size);
+      }
+      entries[size++] = le;
+    }
+    
+    /** drop the oldest entries if there are more than capacity + 25%. Returns true if trimmed. */
+    private boolean trim() {
+      if (size <= capacity + capacity / 4) {
+        return false;
+      }
+      final int drop = size - capacity;
+      System.arraycopy(entries, drop, entries, 0, capacity);
+      Arrays.fill(entries, capacity, size, null);
+      size = capacity;
+      return true;
+    }
+    
+    /** remove all entries */
+    private void clear() {
+      Arrays.fill(entries, 0, size, null);
+      size = 0;
+    }
+  }
+}
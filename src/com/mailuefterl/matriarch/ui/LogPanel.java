@@ -28,30 +28,33 @@ package com.mailuefterl.matriarch.ui;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.Rectangle;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextPane;
-import javax.swing.text.AttributeSet;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.DefaultStyledDocument;
-import javax.swing.text.MutableAttributeSet;
-import javax.swing.text.SimpleAttributeSet;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
+import javax.swing.SwingUtilities;
 
+import com.mailuefterl.matriarch.util.ILogger;
 import com.mailuefterl.matriarch.util.LogManager;
+import com.mailuefterl.matriarch.util.LogManager.LogEntry;
+import com.mailuefterl.matriarch.util.LogStore;
 
 /**
  * Provides a log facility for other classes, and displays the log information
- * in a TextArea (selectable by type/level of logs)
+ * in a list (selectable by type/level of logs). Only the visible rows are
+ * rendered, so the number of log entries does not slow down the UI.
  */
 public class LogPanel extends JPanel {
   /** needed to shut up warning because JPanel is serializable */
@@ -59,8 +62,10 @@ public class LogPanel extends JPanel {
   
   /** LogManager instance */
   private final LogManager logMgr;
-  /** text area to display the logs */
-  private JTextPane jtLogs;
+  /** displayed log entries */
+  private LogListModel logModel;
+  /** list to display the logs */
+  private JList<LogEntry> jlLogs;
   /** button to clear logs */
   private JButton btClear;
   /** checkbox for Info logs */
@@ -69,16 +74,8 @@ public class LogPanel extends JPanel {
   private JCheckBox cbDebug;
   /** checkbox for I/O logs */
   private JCheckBox cbIo;
-  /** display attributes for ERROR logs */
-  private MutableAttributeSet attrError;
-  /** display attributes for INFO logs */
-  private MutableAttributeSet attrInfo;
-  /** display attributes for DEBUG logs */
-  private MutableAttributeSet attrDebug;
-  /** display attributes for IO logs */
-  private MutableAttributeSet attrIo;
-  /** timestamp formatter */
-  private SimpleDateFormat dfTimestamp = new SimpleDateFormat("HH:mm:ss.SSS ");
+  /** sequence number of the first log entry not in logModel yet */
+  private long nextSequence;
   
   /** constructor (should be called in EDT) */
   public LogPanel() {
@@ -92,10 +89,21 @@ public class LogPanel extends JPanel {
     setBorder(BorderFactory.createTitledBorder("Log"));
     setLayout(new BorderLayout());
     
-    jtLogs = new JTextPane();
-    jtLogs.setEditable(false);
+    final int[] capacities = new int[ILogger.LogType.values().length];
+    for (final ILogger.LogType type: ILogger.LogType.values()) {
+      capacities[type.ordinal()] = logMgr.getCapacity(type);
+    }
+    logModel = new LogListModel(capacities);
+    logModel.setDisplayed(ILogger.LogType.LOG_ERROR, true);
+    jlLogs = new JList<LogEntry>(logModel);
+    final LogEntryRenderer renderer = new LogEntryRenderer();
+    jlLogs.setCellRenderer(renderer);
+    // fixed cell size, so that the list does not need to render all entries for its layout
+    jlLogs.setFixedCellHeight(renderer.getListCellRendererComponent(jlLogs, null, 0, false, false)
+            .getPreferredSize().height);
+    jlLogs.setFixedCellWidth(1);
     
-    JScrollPane jspLogs = new JScrollPane(jtLogs);
+    JScrollPane jspLogs = new JScrollPane(jlLogs);
     add(jspLogs, BorderLayout.CENTER);
     
     JPanel pTop = new JPanel();
@@ -109,71 +117,132 @@ public class LogPanel extends JPanel {
     cbIo = new JCheckBox("Display raw MIDI messages", false);
     pTop.add(cbIo);
     add(pTop, BorderLayout.NORTH);
-    
-    attrError = new SimpleAttributeSet();
-    attrError.addAttribute(StyleConstants.Bold, true);
-    attrError.addAttribute(StyleConstants.Foreground, Color.RED);
-    attrInfo = new SimpleAttributeSet();
-    attrInfo.addAttribute(StyleConstants.Bold, true);
-    attrDebug = new SimpleAttributeSet();
-    attrIo = new SimpleAttributeSet();
   }
   
   /** set up listeners on components (called in EDT) */
   private void setupListeners() {
     btClear.addActionListener(l -> {
       logMgr.clearLogs();
-      refreshLogs();
+      logModel.clear();
     });
     
-    cbInfo.addActionListener(l -> refreshLogs());
-    cbDebug.addActionListener(l -> refreshLogs());
-    cbIo.addActionListener(l -> refreshLogs());
+    cbInfo.addActionListener(l -> updateDisplayedTypes());
+    cbDebug.addActionListener(l -> {
+      updateLogLevel();
+      updateDisplayedTypes();
+    });
+    cbIo.addActionListener(l -> {
+      updateLogLevel();
+      updateDisplayedTypes();
+    });
     
     logMgr.addLogListener(new LogManager.ILogListener() {
-      @Override public void logAdded(final LogManager.LogEntry le) {
-        addLog(jtLogs.getStyledDocument(), le);
+      @Override public void logAdded(final LogEntry le) {
+        logsAdded(Collections.singletonList(le));
       }
-    });
-    refreshLogs();
+      
+      @Override public void logsAdded(final List<LogEntry> entries) {
+        appendLogs(entries);
+      }
+    }, SwingUtilities::invokeLater);
+    updateLogLevel();
+    updateDisplayedTypes();
+    final LogStore.Snapshot allLogs = logMgr.getLogsSince(0);
+    appendLogs(allLogs.entries);
+    nextSequence = allLogs.cursor;
   }
   
-  /** (re-)fetch all logs from the log manager. Only needed when log
-   * levels or configuration are changed. Must be called in EDT. */
-  private void refreshLogs() {
-    final Collection<LogManager.LogEntry> allLogs = logMgr.getLogs();
-    final StyledDocument newDoc = new DefaultStyledDocument();
-    for (LogManager.LogEntry le: allLogs) {
-      addLog(newDoc, le);
+  /** record Debug/IO logs while they are displayed, otherwise use the configured log level */
+  private void updateLogLevel() {
+    ILogger.LogType level = logMgr.getDefaultLevel();
+    if (cbIo.isSelected()) {
+      level = ILogger.LogType.LOG_IO;
+    } else if (cbDebug.isSelected() && (level.compareTo(ILogger.LogType.LOG_DEBUG) < 0)) {
+      level = ILogger.LogType.LOG_DEBUG;
     }
-    jtLogs.setStyledDocument(newDoc);
-    jtLogs.select(newDoc.getLength(), newDoc.getLength());
+    logMgr.setLevel(level);
   }
-    
-  /** add one log entry (can be called in any thread, as doc.insertString() is thread safe) */
-  private void addLog(final StyledDocument doc, final LogManager.LogEntry le) {
-    boolean doDisplay;
-    AttributeSet attr;
-    switch (le.type) {
-    case LOG_ERROR: doDisplay = true; attr = attrError; break;
-    case LOG_INFO:  doDisplay = cbInfo.isSelected(); attr = attrInfo; break;
-    case LOG_DEBUG: doDisplay = cbDebug.isSelected(); attr = attrDebug; break;
-    case LOG_IO:    doDisplay = cbIo.isSelected(); attr = attrIo; break;
-    default: doDisplay = false; attr = null;
+  
+  /** show the log types selected by the checkboxes (called in EDT) */
+  private void updateDisplayedTypes() {
+    logModel.setDisplayed(ILogger.LogType.LOG_INFO, cbInfo.isSelected());
+    logModel.setDisplayed(ILogger.LogType.LOG_DEBUG, cbDebug.isSelected());
+    logModel.setDisplayed(ILogger.LogType.LOG_IO, cbIo.isSelected());
+    scrollToEnd();
+  }
+  
+  /** add a batch of new log entries, skipping those already in the model (called in EDT) */
+  private void appendLogs(final List<LogEntry> entries) {
+    int first = 0;
+    while ((first < entries.size()) && (entries.get(first).getSequence() < nextSequence)) {
+      first++;
     }
-    if (doDisplay) {
-      int oldLen = doc.getLength();
-      try {
-        doc.insertString(oldLen, getText(le), attr);
-        jtLogs.select(doc.getLength(), doc.getLength());
-      }
-      catch (final BadLocationException ignore) {}
+    if (first == entries.size()) {
+      return;
+    }
+    final boolean atEnd = isScrolledToEnd();
+    logModel.append(entries.subList(first, entries.size()));
+    nextSequence = entries.get(entries.size() - 1).getSequence() + 1;
+    if (atEnd) {
+      scrollToEnd();
     }
   }
   
-  /** format a log entry (timestamp + text) */
-  private String getText(final LogManager.LogEntry le) {
-    final Date dt = new Date(le.timestamp);
-    return dfTimestamp.format(dt) + le.text +'\n';
+  /** check whether the last entry is visible, i.e. the user did not scroll up to read older logs */
+  private boolean isScrolledToEnd() {
+    final Rectangle visible = jlLogs.getVisibleRect();
+    return visible.y + visible.height >= jlLogs.getHeight() - jlLogs.getFixedCellHeight();
+  }
+  
+  /** scroll to the newest log entry */
+  private void scrollToEnd() {
+    final int size = logModel.getSize();
+    if (size > 0) {
+      jlLogs.ensureIndexIsVisible(size - 1);
+    }
+  }
+  
+  /** renders one log entry (timestamp + text), only called for visible rows */
+  private static final class LogEntryRenderer extends DefaultListCellRenderer {
+    /** needed to shut up warning because DefaultListCellRenderer is serializable */
+    private static final long serialVersionUID = 1L;
+    /** timestamp formatter */
+    private final SimpleDateFormat dfTimestamp = new SimpleDateFormat("HH:mm:ss.SSS ");
+    /** reused for formatting */
+    private final Date date = new Date();
+    /** font for error and info logs */
+    private Font boldFont;
+    /** font for other logs */
+    private Font plainFont;
+    
+    /** {@inheritDoc} */
+    @Override
+    public Component getListCellRendererComponent(final JList<?> list, final Object value, final int index,
+            final boolean isSelected, final boolean cellHasFocus) {
+      final LogEntry le = (LogEntry)value;
+      final String text;
+      if (le == null) {
+        text = "00:00:00.000 Xg";
+      } else {
+        date.setTime(le.timestamp);
+        text = dfTimestamp.format(date) + le.getText();
+      }
+      super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+      if ((plainFont == null) || !plainFont.equals(list.getFont())) {
+        plainFont = list.getFont();
+        boldFont = plainFont.deriveFont(Font.BOLD);
+      }
+      final ILogger.LogType type = (le == null) ? ILogger.LogType.LOG_INFO : le.type;
+      setFont(((type == ILogger.LogType.LOG_ERROR) || (type == ILogger.LogType.LOG_INFO)) ? boldFont : plainFont);
+      if ((type == ILogger.LogType.LOG_ERROR) && !isSelected) {
+        setForeground(Color.RED);
+      }
+      // grow the list width to the widest entry rendered so far (for horizontal scrolling)
+      final int width = getPreferredSize().width;
+      if (width > list.getFixedCellWidth()) {
+        SwingUtilities.invokeLater(() -> list.setFixedCellWidth(Math.max(width, list.getFixedCellWidth())));
+      }
+      return this;
+    }
   }
 }
@@ -0,0 +1,402 @@
+package com.mailuefterl.matriarch.util;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mailuefterl.matriarch.util.LogManager.ILogListener;
+import com.mailuefterl.matriarch.util.LogManager.LogEntry;
+
+/**
+ * Log listener that writes log entries to a file on its own writer thread.
+ * Entries are handed over through a bounded queue: if the writer cannot keep up,
+ * entries are dropped (and counted, the count is written to the file) instead of
+ * blocking the caller. Entries that never reach the sink (overwritten in the log store
+ * before dispatch, see logsMissed()) and entries lost to write
+ * errors are counted and noted in the file as well; after a write error the file is
+ * reopened after RETRY_MILLIS. The file is rotated when it reaches a maximum size or age
+ * (name.1 is the newest old file, up to name.[maxFiles]).
+ * Text format: one line per entry "yyyy-MM-dd HH:mm:ss.SSS TYPE text".
+ * Binary format: "MSLG", short version, then per entry: byte type, long timestamp,
+ * long sequence number, int length, UTF-8 text.
+ */
+public class FileLogSink implements ILogListener {
+  /** magic bytes at the start of a binary log file */
+  private static final byte[] BINARY_MAGIC = { 'M', 'S', 'L', 'G' };
+  /** version of binary format */
+  private static final short BINARY_VERSION = 1;
+  /** size of the write buffer */
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** max. number of entries written in one go */
+  private static final int MAX_BATCH = 1000;
+  /** time to wait after a write error before the file is reopened [msec] */
+  private static final long RETRY_MILLIS = 1000;
+  /** line separator for text format */
+  private static final String NEWLINE = System.lineSeparator();
+  
+  /** log file */
+  private final File file;
+  /** true for binary format, false for text */
+  private final boolean binary;
+  /** max. file size [bytes] before rotation (0: unlimited) */
+  private final long maxSize;
+  /** max. file age [msec] before rotation (0: unlimited) */
+  private final long maxAge;
+  /** number of old files kept */
+  private final int maxFiles;
+  /** entries waiting to be written */
+  private final BlockingQueue<LogEntry> queue;
+  /** writer thread */
+  private final Thread writer;
+  /** number of entries dropped because the queue was full */
+  private volatile long numDropped;
+  /** number of entries that never reached the sink (overwritten before dispatch) */
+  private volatile long numMissed;
+  /** number of entries lost because of write errors */
+  private volatile long numLost;
+  /** number of write errors */
+  private volatile long numErrors;
+  /** last write error */
+  private volatile IOException lastError;
+  /** set by close() */
+  private volatile boolean closing;
+  
+  // the following fields are only used by the writer thread
+  /** write buffer */
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  /** text encoder */
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+  /** timestamp formatter for text format */
+  private final SimpleDateFormat dfTimestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS ");
+  /** reused for timestamp formatting */
+  private final Date date = new Date();
+  /** current file, null if not open */
+  private FileChannel channel;
+  /** size of current file without buffered data [bytes] */
+  private long fileSize;
+  /** when current file was started [System.currentTimeMillis()] */
+  private long fileStarted;
+  /** number of dropped entries already reported in the file */
+  private long reportedDropped;
+  /** number of missed entries already reported in the file */
+  private long reportedMissed;
+  /** number of lost entries already reported in the file */
+  private long reportedLost;
+  /** time of the last write error [System.currentTimeMillis()], 0 if the file is fine */
+  private long failedAt;
+  /** number of entries in the buffer that have not been written to the file */
+  private int bufferedEntries;
+  
+  /** constructor, starts the writer thread */
+  public FileLogSink(final File file, final boolean binary, final long maxSize, final long maxAge,
+          final int maxFiles, final int queueSize) {
+    this.file = file;
+    this.binary = binary;
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    this.maxFiles = maxFiles;
+    queue = new ArrayBlockingQueue<LogEntry>(Math.max(1, queueSize));
+    writer = new Thread(() -> writeRunner(), "FileLogSink");
+    writer.setDaemon(true);
+    writer.start();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void logAdded(final LogEntry newEntry) {
+    if (closing || !queue.offer(newEntry)) {
+      numDropped++;
+    }
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void logsMissed(final long count) {
+    numMissed += count;
+  }
+  
+  /** number of entries dropped because the writer could not keep up */
+  public long getNumDropped() {
+    return numDropped;
+  }
+  
+  /** number of entries that did not reach the sink (overwritten in the log store before dispatch) */
+  public long getNumMissed() {
+    return numMissed;
+  }
+  
+  /** number of entries lost because of write errors */
+  public long getNumLost() {
+    return numLost;
+  }
+  
+  /** number of write errors */
+  public long getNumErrors() {
+    return numErrors;
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public String getStatus() {
+    if ((numDropped == 0) && (numMissed == 0) && (numErrors == 0)) {
+      return null;
+    }
+    return "log file "+ file +": "+ numDropped +" entries dropped (writer overloaded), "
+            + numMissed +" missed (overwritten before dispatch), "+ numLost +" lost to "
+            + numErrors +" write errors"+ ((lastError != null) ? " (last: "+ lastError +")" : "");
+  }
+  
+  /** write the remaining entries and close the file (waits up to timeout [msec]) */
+  public void close(final long timeout) {
+    closing = true;
+    try {
+      writer.join(timeout);
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /** run method of the writer thread */
+  private void writeRunner() {
+    final List<LogEntry> batch = new ArrayList<LogEntry>(MAX_BATCH);
+    try {
+      while (!closing || !queue.isEmpty()) {
+        final LogEntry first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          flushQuietly();
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH - 1);
+        for (final LogEntry le: batch) {
+          write(le);
+        }
+        batch.clear();
+        if (queue.isEmpty()) {
+          flushQuietly();
+        }
+      }
+      flushQuietly();
+    }
+    catch (final InterruptedException e) {
+      // just stop
+    }
+    finally {
+      closeFile();
+    }
+  }
+  
+  /** write one entry, counting it as lost if the file cannot be written */
+  private void write(final LogEntry le) {
+    if ((failedAt != 0) && (System.currentTimeMillis() - failedAt < RETRY_MILLIS)) {
+      numLost++;
+      return;
+    }
+    try {
+      writeChecked(le);
+      bufferedEntries++;
+      failedAt = 0;
+    }
+    catch (final IOException e) {
+      numLost++;
+      writeFailed(e);
+    }
+  }
+  
+  /** write the buffer to the file, handling a write error like write() does */
+  private void flushQuietly() {
+    if (failedAt != 0) {
+      return;
+    }
+    try {
+      flush();
+    }
+    catch (final IOException e) {
+      writeFailed(e);
+    }
+  }
+  
+  /** count a write error and the buffered entries lost with it, and close the file
+   * (the buffer may hold a partial entry, so it starts over with a new file) */
+  private void writeFailed(final IOException e) {
+    numLost += bufferedEntries;
+    bufferedEntries = 0;
+    numErrors++;
+    lastError = e;
+    failedAt = System.currentTimeMillis();
+    buffer.clear();
+    closeFile();
+  }
+  
+  /** write one entry (and a note about lost entries) to the buffer, rotating the file if necessary */
+  private void writeChecked(final LogEntry le) throws IOException {
+    if ((channel == null) || ((maxSize > 0) && (fileSize + buffer.position() >= maxSize))
+            || ((maxAge > 0) && (le.timestamp - fileStarted >= maxAge))) {
+      rotate();
+    }
+    final long dropped = numDropped;
+    if (dropped != reportedDropped) {
+      writeEntry(ILogger.LogType.LOG_ERROR.ordinal(), System.currentTimeMillis(), -1,
+              (dropped - reportedDropped) +" log entries dropped (log file writer overloaded)");
+      reportedDropped = dropped;
+    }
+    final long missed = numMissed;
+    if (missed != reportedMissed) {
+      writeEntry(ILogger.LogType.LOG_ERROR.ordinal(), System.currentTimeMillis(), -1,
+              (missed - reportedMissed) +" log entries missed (overwritten in log buffer before dispatch)");
+      reportedMissed = missed;
+    }
+    final long lost = numLost;
+    if (lost != reportedLost) {
+      writeEntry(ILogger.LogType.LOG_ERROR.ordinal(), System.currentTimeMillis(), -1,
+              (lost - reportedLost) +" log entries lost because of write errors (last: "+ lastError +")");
+      reportedLost = lost;
+    }
+    writeEntry(le.type.ordinal(), le.timestamp, le.getSequence(), le.getText());
+  }
+  
+  /** write one entry to the buffer */
+  private void writeEntry(final int type, final long timestamp, final long sequence, final String text)
+          throws IOException {
+    if (binary) {
+      // the whole entry must be in the buffer to fill in its length, long texts are cut off
+      final int header = 1 + 8 + 8 + 4;
+      final int maxText = (int)Math.min(3L * text.length(), BUFFER_SIZE - header);
+      ensureSpace(header + maxText);
+      buffer.put((byte)type);
+      buffer.putLong(timestamp);
+      buffer.putLong(sequence);
+      final int lengthPos = buffer.position();
+      buffer.putInt(0);
+      buffer.putInt(lengthPos, encode(text, maxText, false));
+    } else {
+      date.setTime(timestamp);
+      encode(dfTimestamp.format(date), BUFFER_SIZE, true);
+      encode(ILogger.LogType.values()[type].name().substring(4), BUFFER_SIZE, true);
+      encode(" ", BUFFER_SIZE, true);
+      encode(text, Integer.MAX_VALUE, true);
+      encode(NEWLINE, BUFFER_SIZE, true);
+    }
+  }
+  
+  /** encode text as UTF-8 into the buffer, at most maxBytes (the rest is cut off).
+   * If allowFlush, the buffer is written to the file when full, otherwise the text is cut off there.
+   * Returns the number of bytes encoded. */
+  private int encode(final String text, final int maxBytes, final boolean allowFlush) throws IOException {
+    final CharBuffer chars = CharBuffer.wrap(text);
+    encoder.reset();
+    int written = 0;
+    while (true) {
+      final int limit = buffer.limit();
+      final int start = buffer.position();
+      buffer.limit((int)Math.min(limit, (long)start + maxBytes - written));
+      final CoderResult result = encoder.encode(chars, buffer, true);
+      buffer.limit(limit);
+      written += buffer.position() - start;
+      if (!result.isOverflow() || !allowFlush || (buffer.position() == 0)) {
+        return written;
+      }
+      flush();
+    }
+  }
+  
+  /** make sure the buffer has room for n bytes */
+  private void ensureSpace(final int n) throws IOException {
+    if (buffer.remaining() < n) {
+      flush();
+    }
+  }
+  
+  /** write the buffer to the file */
+  private void flush() throws IOException {
+    if ((channel != null) && (buffer.position() > 0)) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        fileSize += channel.write(buffer);
+      }
+      buffer.clear();
+      bufferedEntries = 0;
+    }
+  }
+  
+  /** close the current file, rename old files and start a new one */
+  private void rotate() throws IOException {
+    flush();
+    closeFile();
+    if (file.exists() && (file.length() > 0)) {
+      for (int i = maxFiles - 1; i >= 1; i--) {
+        final File older = new File(file.getPath() +"."+ i);
+        if (older.exists()) {
+          Files.move(older.toPath(), new File(file.getPath() +"."+ (i + 1)).toPath(),
+                  StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      if (maxFiles > 0) {
+        Files.move(file.toPath(), new File(file.getPath() +".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    fileSize = 0;
+    fileStarted = System.currentTimeMillis();
+    if (binary) {
+      buffer.put(BINARY_MAGIC);
+      buffer.putShort(BINARY_VERSION);
+    }
+  }
+  
+  /** close the current file */
+  private void closeFile() {
+    if (channel != null) {
+      try {
+        channel.close();
+      }
+      catch (final IOException ignore) {}
+      channel = null;
+    }
+  }
+}
@@ -26,22 +26,44 @@ package com.mailuefterl.matriarch.util;
  * #L%
  */
 
+import java.util.function.Supplier;
+
 /**
- * Interface for logging facilities, includes constants and methods
+ * Interface for logging facilities, includes constants and methods.
+ * Entries below the current log level (see LogManager.setLevel()) are discarded
+ * right away, the text of recorded entries is only built when it is first needed,
+ * possibly much later and on another thread (log panel, dispatcher, log file writer).
+ * Arguments (and whatever a Supplier reads) must therefore be immutable or not
+ * modified after they are logged: pass values (numbers, strings, copies) instead of
+ * objects whose state changes, e.g. the fields of an estimator rather than the estimator.
  */
 public interface ILogger {
 
-  /** defines the types of log entries */
+  /** defines the types of log entries (in order of increasing verbosity, used as log levels) */
   public enum LogType { LOG_ERROR, LOG_INFO, LOG_DEBUG, LOG_IO };
   
+  /** check whether entries of the given type are recorded at the current log level
+   * (use to avoid preparing expensive arguments) */
+  public boolean isEnabled(LogType type);
+  
   /** log something as an error */
   public void error(Object ... args);
   /** log something as info */
   public void info(Object ... args);
+  /** log something as info, the text is only computed when needed */
+  public void info(Supplier<?> text);
+  /** log something as info, formatted with String.format() when needed */
+  public void infof(String format, Object ... args);
   /** log something as debug information */
   public void debug(Object ... args);
+  /** log something as debug information, the text is only computed when needed */
+  public void debug(Supplier<?> text);
+  /** log something as debug information, formatted with String.format() when needed */
+  public void debugf(String format, Object ... args);
   /** log input/output data */
   public void io(Object ... args);
-  /** log input/output data as Hex dump */
+  /** log input/output data, the text is only computed when needed */
+  public void io(Supplier<?> text);
+  /** log input/output data as Hex dump (data must not be modified afterwards) */
   public void iohex(String prefix, byte[] data);
 }
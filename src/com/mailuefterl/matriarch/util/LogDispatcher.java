@@ -0,0 +1,204 @@
+package com.mailuefterl.matriarch.util;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mailuefterl.matriarch.util.LogManager.ILogListener;
+import com.mailuefterl.matriarch.util.LogManager.LogEntry;
+
+/**
+ * Delivers new log entries to listeners on a dedicated thread, so that logging threads
+ * only add to the LogStore and never wait for listeners. After being signalled, the
+ * dispatcher waits for the coalescing interval and then hands all entries added in the
+ * meantime to each listener as one batch, optionally through an executor of the
+ * listener's choice (e.g. the Swing event dispatch thread).
+ * Entries that are overwritten in the store before they are dispatched are not delivered,
+ * they are counted instead (as are failing listener calls), see getStatus().
+ */
+class LogDispatcher {
+  /** store to read new entries from */
+  private final LogStore logStore;
+  /** registered listeners */
+  private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+  /** coalescing interval [nsec] */
+  private volatile long intervalNanos = TimeUnit.MILLISECONDS.toNanos(50);
+  /** true if entries were added since the last dispatch round */
+  private volatile boolean pending;
+  /** dispatcher thread, started with the first listener */
+  private Thread thread;
+  /** sequence number of the next entry to dispatch (dispatcher thread only) */
+  private long cursor;
+  /** number of entries overwritten in the store before they could be dispatched */
+  private volatile long numMissed;
+  
+  /** constructor */
+  LogDispatcher(final LogStore logStore) {
+    this.logStore = logStore;
+  }
+  
+  /** set the coalescing interval [msec] */
+  void setInterval(final long millis) {
+    intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+  }
+  
+  /** add a listener, called by executor (null: on the dispatcher thread). Returns false if already registered. */
+  synchronized boolean addListener(final ILogListener listener, final Executor executor) {
+    for (final Registration reg: registrations) {
+      if (reg.listener == listener) {
+        return false;
+      }
+    }
+    if (thread == null) {
+      cursor = logStore.getSince(Long.MAX_VALUE).cursor;
+      thread = new Thread(() -> dispatchRunner(), "LogDispatcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    registrations.add(new Registration(listener, executor));
+    return true;
+  }
+  
+  /** remove a listener */
+  boolean removeListener(final ILogListener listener) {
+    for (final Registration reg: registrations) {
+      if (reg.listener == listener) {
+        return registrations.remove(reg);
+      }
+    }
+    return false;
+  }
+  
+  /** signal that an entry was added (called by logging threads, does not block) */
+  void entryAdded() {
+    if (!pending) {
+      pending = true;
+      final Thread t = thread;
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
+    }
+  }
+  
+  /** run method of the dispatcher thread */
+  private void dispatchRunner() {
+    while (true) {
+      while (!pending) {
+        LockSupport.park(this);
+      }
+      final long deadline = System.nanoTime() + intervalNanos;
+      long timeLeft;
+      while ((timeLeft = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(this, timeLeft);
+      }
+      pending = false;
+      final LogStore.Snapshot batch = logStore.getSince(cursor);
+      cursor = batch.cursor;
+      numMissed += batch.numMissed;
+      if (!batch.entries.isEmpty() || (batch.numMissed > 0)) {
+        for (final Registration reg: registrations) {
+          reg.deliver(batch.entries, batch.numMissed);
+        }
+      }
+    }
+  }
+  
+  /** number of entries overwritten in the store before they could be dispatched */
+  long getNumMissed() {
+    return numMissed;
+  }
+  
+  /** get a description of lost entries, failing listeners and the listeners' own status
+   * (see ILogListener.getStatus()), or "OK" if there is nothing to report */
+  String getStatus() {
+    final StringBuilder sb = new StringBuilder();
+    if (numMissed > 0) {
+      sb.append(numMissed).append(" entries overwritten before dispatch");
+    }
+    for (final Registration reg: registrations) {
+      final long failures = reg.numFailures.get();
+      if (failures > 0) {
+        sb.append((sb.length() > 0) ? "; " : "").append(reg.listener.getClass().getSimpleName())
+          .append(" failed ").append(failures).append(" times (last: ").append(reg.lastFailure).append(")");
+      }
+      final String status = reg.listener.getStatus();
+      if (status != null) {
+        sb.append((sb.length() > 0) ? "; " : "").append(status);
+      }
+    }
+    return (sb.length() > 0) ? sb.toString() : "OK";
+  }
+  
+  /** a listener and how to call it */
+  private static final class Registration {
+    /** listener */
+    private final ILogListener listener;
+    /** executor to call the listener with, null to call it directly */
+    private final Executor executor;
+    /** number of calls that threw an exception */
+    private final AtomicLong numFailures = new AtomicLong();
+    /** exception of the last failed call */
+    private volatile RuntimeException lastFailure;
+    
+    /** constructor */
+    private Registration(final ILogListener listener, final Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+    
+    /** hand a batch (and the number of entries missed before it) to the listener */
+    private void deliver(final List<LogEntry> entries, final long numMissed) {
+      if (executor == null) {
+        notifyListener(entries, numMissed);
+      } else {
+        executor.execute(() -> notifyListener(entries, numMissed));
+      }
+    }
+    
+    /** call the listener (a failing listener must not stop the dispatcher, and cannot log itself:
+     * failures are counted and reported by getStatus()) */
+    private void notifyListener(final List<LogEntry> entries, final long numMissed) {
+      try {
+        if (numMissed > 0) {
+          listener.logsMissed(numMissed);
+        }
+        if (!entries.isEmpty()) {
+          listener.logsAdded(entries);
+        }
+      }
+      catch (final RuntimeException e) {
+        lastFailure = e;
+        numFailures.incrementAndGet();
+      }
+    }
+  }
+}
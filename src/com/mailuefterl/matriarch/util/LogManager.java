@@ -26,26 +26,37 @@ package com.mailuefterl.matriarch.util;
  * #L%
  */
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 /**
  * Manages logs delegated from ILogger, does the actual buffering of logs
- * and notifies callbacks when new logs arrive.
+ * (bounded, see LogStore) and notifies callbacks when new logs arrive
+ * (asynchronously and in batches, see LogDispatcher).
+ * Entries more verbose than the current log level are discarded without creating them,
+ * the text of an entry is only built when it is first requested (LogEntry.getText()).
  * Singleton, can only be instantiated once by getLogManager static method.
  */
 public class LogManager {
   /** static pointer to singleton instance */
   private static final LogManager singleInstance = new LogManager();
   
+  /** default number of log entries kept per type */
+  public static final int DEFAULT_CAPACITY = 5000;
+  
   /** actual log buffer */
-  private Queue<LogEntry> logBuffer = new ArrayDeque<>(500);
-  /** list of callbacks to be notified when new logs arrive */
-  private List<ILogListener> logListeners = new ArrayList<ILogListener>(5);
+  private final LogStore logStore = new LogStore(DEFAULT_CAPACITY);
+  /** notifies callbacks when new logs arrive */
+  private final LogDispatcher logDispatcher = new LogDispatcher(logStore);
+  /** configured log level (see setDefaultLevel()) */
+  private volatile ILogger.LogType defaultLevel = ILogger.LogType.LOG_DEBUG;
+  /** current log level: most verbose type of entries that are recorded */
+  private volatile ILogger.LogType level = ILogger.LogType.LOG_DEBUG;
+  /** digits for hex dumps */
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
   
   /** private constructor (use getLogManager() static method instead) */
@@ -62,81 +73,209 @@ public class LogManager {
     return new Logger(singleInstance);
   }
 
-  /** add a listener to be notified when logs are added */
+  /** add a listener to be notified when logs are added (called on the log dispatcher thread) */
   public boolean addLogListener(final ILogListener listener) {
-    if ((listener != null) && !logListeners.contains(listener)) {
-      logListeners.add(listener);
-      return true;
-    }
-    return false;
+    return addLogListener(listener, null);
+  }
+  
+  /** add a listener to be notified when logs are added, called through the given executor
+   * (e.g. SwingUtilities::invokeLater), or on the log dispatcher thread if null */
+  public boolean addLogListener(final ILogListener listener, final Executor executor) {
+    return (listener != null) && logDispatcher.addListener(listener, executor);
   }
   
   /** remove a log listener */
   public boolean removeLogListener(final ILogListener listener) {
-    return logListeners.remove(listener);
+    return logDispatcher.removeListener(listener);
   }
   
-  /** add a log entry */
-  private void addLog(final ILogger.LogType type, final String text) {
-    final LogEntry entry = new LogEntry(type, text);
-    synchronized(logBuffer) {
-      logBuffer.add(entry);
+  /** set the time [msec] new logs are collected before listeners are notified of them */
+  public void setDispatchInterval(final long millis) {
+    logDispatcher.setInterval(millis);
+  }
+  
+  /** set the configured log level by name ("error", "info", "debug" or "io"),
+   * also makes it the current level */
+  public void setDefaultLevel(final String name) {
+    final ILogger.LogType type;
+    try {
+      type = ILogger.LogType.valueOf("LOG_"+ name.trim().toUpperCase(Locale.ROOT));
     }
-    for (ILogListener l: logListeners) {
-      l.logAdded(entry);
+    catch (final IllegalArgumentException e) {
+      log(ILogger.LogType.LOG_ERROR, "Unknown log level ", name);
+      return;
     }
+    defaultLevel = type;
+    level = type;
+  }
+  
+  /** get the configured log level */
+  public ILogger.LogType getDefaultLevel() {
+    return defaultLevel;
   }
   
-  /** log something (delegated from ILogger instances) */
+  /** set the current log level: most verbose type of entries that are recorded (errors are always recorded) */
+  public void setLevel(final ILogger.LogType type) {
+    level = type;
+  }
+  
+  /** get the current log level */
+  public ILogger.LogType getLevel() {
+    return level;
+  }
+  
+  /** check whether entries of the given type are recorded at the current log level */
+  public boolean isEnabled(final ILogger.LogType type) {
+    return type.ordinal() <= level.ordinal();
+  }
+  
+  /** add a log entry */
+  private void addLog(final LogEntry entry) {
+    logStore.add(entry);
+    logDispatcher.entryAdded();
+  }
+  
+  /** log something (delegated from ILogger instances), args are concatenated when needed */
   public void log(final ILogger.LogType type, final Object ... args) {
-    final StringBuilder sb = new StringBuilder();
-    for (Object ob: args) {
-      sb.append(ob);
+    if (isEnabled(type)) {
+      addLog(new LogEntry(type, () -> {
+        final StringBuilder sb = new StringBuilder();
+        for (Object ob: args) {
+          sb.append(ob);
+        }
+        return sb.toString();
+      }));
     }
-    addLog(type, sb.toString());
   }
   
-  /** log a hexdump of a data snippet (one-line) */
+  /** log something computed when needed */
+  public void log(final ILogger.LogType type, final Supplier<?> text) {
+    if (isEnabled(type)) {
+      addLog(new LogEntry(type, () -> String.valueOf(text.get())));
+    }
+  }
+  
+  /** log something formatted with String.format() when needed */
+  public void logFormat(final ILogger.LogType type, final String format, final Object ... args) {
+    if (isEnabled(type)) {
+      addLog(new LogEntry(type, () -> String.format(format, args)));
+    }
+  }
+  
+  /** log a hexdump of a data snippet (one-line), formatted when needed */
   public void logHex(final ILogger.LogType type, final String prefix, final byte[] data) {
-    final StringBuilder sb = new StringBuilder(prefix);
-    for (final byte bite: data) {
-      sb.append(String.format(" %02X", bite));
+    if (isEnabled(type)) {
+      addLog(new LogEntry(type, () -> {
+        final char[] hex = new char[data.length * 3];
+        for (int i = 0; i < data.length; i++) {
+          hex[3 * i] = ' ';
+          hex[3 * i + 1] = HEX_DIGITS[(data[i] >> 4) & 0x0f];
+          hex[3 * i + 2] = HEX_DIGITS[data[i] & 0x0f];
+        }
+        return prefix + new String(hex);
+      }));
     }
-    addLog(type, sb.toString());
   }
   
   /** clear the logbuffer (does not notify any listeners) */
   public void clearLogs() {
-    synchronized(logBuffer) {
-      logBuffer.clear();
-    }
+    logStore.clear();
+  }
+  
+  /** set the number of log entries of one type that are kept (oldest are overwritten) */
+  public void setCapacity(final ILogger.LogType type, final int capacity) {
+    logStore.setCapacity(type, capacity);
+  }
+  
+  /** get the number of log entries of one type that are kept */
+  public int getCapacity(final ILogger.LogType type) {
+    return logStore.getCapacity(type);
   }
   
-  /** get a list of all currently buffered logs */
+  /** get a copy of all currently buffered logs, ordered by sequence number */
   public Collection<LogEntry> getLogs() {
-    return Collections.unmodifiableCollection(logBuffer);
+    return logStore.getSnapshot().entries;
+  }
+  
+  /** get a copy of the buffered logs with sequence number >= cursor, and the cursor for the next call */
+  public LogStore.Snapshot getLogsSince(final long cursor) {
+    return logStore.getSince(cursor);
+  }
+  
+  /** get a description of log entries lost on the way to listeners and of failing
+   * listeners (including the listeners' own status, e.g. of a log file), or "OK" */
+  public String getStatus() {
+    return logDispatcher.getStatus();
   }
   
   /** Definition of a callback that is executed when log messages are added. */
   public static interface ILogListener {
-    /** notify the listener that a log entry is being added */
+    /** notify the listener that a log entry has been added */
     public void logAdded(LogEntry newEntry);
+    
+    /** notify the listener that log entries have been added (ordered by sequence number) */
+    public default void logsAdded(final List<LogEntry> newEntries) {
+      for (final LogEntry entry: newEntries) {
+        logAdded(entry);
+      }
+    }
+    
+    /** notify the listener that count entries were overwritten in the log buffer before
+     * they could be delivered (called before the next batch) */
+    public default void logsMissed(final long count) {
+      // ignored by default
+    }
+    
+    /** get a description of problems of the listener (e.g. entries it could not handle),
+     * or null if there is nothing to report */
+    public default String getStatus() {
+      return null;
+    }
   }
 
-  /** One entry in the log buffer (immutable) */
+  /** One entry in the log buffer (its text is built on the first call of getText()) */
   public static class LogEntry {
     /** type of log entry */
     public final ILogger.LogType type;
     /** timestamp of log */
     public final long timestamp;
-    /** text of log entry */
-    public final String text;
+    /** sequence number (assigned by LogStore when the entry enters its ring buffer) */
+    long sequence;
+    /** builds the text, null once text is known */
+    private Supplier<String> formatter;
+    /** text of log entry, null until first requested */
+    private String text;
     
     /** constructor */
-    private LogEntry(ILogger.LogType type, String text) {
+    private LogEntry(final ILogger.LogType type, final Supplier<String> formatter) {
       this.type = type;
       this.timestamp = System.currentTimeMillis();
-      this.text = text;
+      this.formatter = formatter;
+    }
+    
+    /** text of the log entry (e.g. when copied from the log panel) */
+    @Override
+    public String toString() {
+      return getText();
+    }
+    
+    /** get the sequence number, which orders entries of all types */
+    public long getSequence() {
+      return sequence;
+    }
+    
+    /** get the text of the log entry (built on first call) */
+    public synchronized String getText() {
+      if (text == null) {
+        try {
+          text = formatter.get();
+        }
+        catch (final RuntimeException e) {
+          text = "(unable to format log entry: "+ e +")";
+        }
+        formatter = null;
+      }
+      return text;
     }
   }
 }
@@ -0,0 +1,262 @@
+package com.mailuefterl.matriarch.util;
+
+/*-
+ * #%L
+ * MatriarchSwitch
+ * %%
+ * Copyright (C) 2020 Mailüfterl s.r.o.
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mailuefterl.matriarch.util.LogManager.LogEntry;
+
+/**
+ * Bounded store for log entries: one ring buffer per log type, each with its own
+ * capacity, overwriting the oldest entries of that type when full. Every entry gets
+ * a sequence number when it enters its ring, which orders entries across types and
+ * serves as cursor for incremental reads. Readers always get copies (snapshots), so
+ * they can iterate while other threads keep logging.
+ * Logging threads never wait: add() only appends to a lock-free queue, which readers
+ * drain into the rings (under a lock that only readers wait for). If nobody reads,
+ * a logging thread drains the queue itself once it has grown to DRAIN_THRESHOLD
+ * entries, but only if no reader holds the lock.
+ */
+public class LogStore {
+  /** number of queued entries at which a logging thread drains the queue itself */
+  private static final int DRAIN_THRESHOLD = 4096;
+  
+  /** entries added but not in their ring yet, in the order they were added */
+  private final ConcurrentLinkedQueue<LogEntry> added = new ConcurrentLinkedQueue<LogEntry>();
+  /** number of entries in added */
+  private final AtomicInteger numAdded = new AtomicInteger();
+  /** guards rings and nextSequence (held by readers, logging threads only try it) */
+  private final ReentrantLock lock = new ReentrantLock();
+  /** one ring per log type (indexed by ordinal) */
+  private final Ring[] rings = new Ring[ILogger.LogType.values().length];
+  /** sequence number of the next entry moved into its ring */
+  private long nextSequence;
+  
+  /** constructor, all types get the same capacity */
+  public LogStore(final int capacity) {
+    for (int i = 0; i < rings.length; i++) {
+      rings[i] = new Ring(capacity);
+    }
+  }
+  
+  /** change the capacity for one log type (keeps the newest entries) */
+  public void setCapacity(final ILogger.LogType type, final int capacity) {
+    lock.lock();
+    try {
+      drain();
+      final Ring old = rings[type.ordinal()];
+      final Ring ring = new Ring(capacity);
+      for (int i = Math.max(0, old.size - ring.entries.length); i < old.size; i++) {
+        ring.add(old.get(i));
+      }
+      ring.numOverwritten = old.numOverwritten + Math.max(0, old.size - ring.entries.length);
+      rings[type.ordinal()] = ring;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  /** get the capacity for one log type */
+  public int getCapacity(final ILogger.LogType type) {
+    lock.lock();
+    try {
+      return rings[type.ordinal()].entries.length;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  /** add an entry (lock-free, its sequence number is assigned when it is moved into its ring) */
+  public void add(final LogEntry entry) {
+    added.offer(entry);
+    if ((numAdded.incrementAndGet() >= DRAIN_THRESHOLD) && lock.tryLock()) {
+      try {
+        drain();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+  
+  /** remove all entries (sequence numbers continue) */
+  public void clear() {
+    lock.lock();
+    try {
+      drain();
+      for (final Ring ring: rings) {
+        ring.clear();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  /** number of entries of one type that were overwritten because the ring was full */
+  public long getNumOverwritten(final ILogger.LogType type) {
+    lock.lock();
+    try {
+      drain();
+      return rings[type.ordinal()].numOverwritten;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  /** get a copy of all entries, ordered by sequence number */
+  public Snapshot getSnapshot() {
+    return getSince(0);
+  }
+  
+  /** get a copy of all entries with sequence number >= cursor, ordered by sequence number.
+   * Pass the cursor of the returned snapshot to get the next entries. */
+  public Snapshot getSince(final long cursor) {
+    lock.lock();
+    try {
+      drain();
+      final int[] pos = new int[rings.length];
+      int total = 0;
+      for (int i = 0; i < rings.length; i++) {
+        pos[i] = rings[i].indexOf(cursor);
+        total += rings[i].size - pos[i];
+      }
+      // merge the rings (each is ordered by sequence number)
+      final List<LogEntry> entries = new ArrayList<LogEntry>(total);
+      while (entries.size() < total) {
+        int next = -1;
+        for (int i = 0; i < rings.length; i++) {
+          if ((pos[i] < rings[i].size)
+                  && ((next < 0) || (rings[i].get(pos[i]).sequence < rings[next].get(pos[next]).sequence))) {
+            next = i;
+          }
+        }
+        entries.add(rings[next].get(pos[next]++));
+      }
+      final long numMissed = nextSequence - Math.min(Math.max(0, cursor), nextSequence) - total;
+      return new Snapshot(Collections.unmodifiableList(entries), nextSequence, numMissed);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  /** move the queued entries into their rings, assigning sequence numbers (lock must be held).
+   * Entries added while draining are left for the next call, so that this always ends. */
+  private void drain() {
+    for (int n = numAdded.get(); n > 0; n--) {
+      final LogEntry entry = added.poll();
+      numAdded.decrementAndGet();
+      entry.sequence = nextSequence++;
+      rings[entry.type.ordinal()].add(entry);
+    }
+  }
+  
+  /** a copy of log entries, with the cursor to continue reading */
+  public static final class Snapshot {
+    /** entries, ordered by sequence number */
+    public final List<LogEntry> entries;
+    /** sequence number of the next entry that will be added (cursor for getSince()) */
+    public final long cursor;
+    /** number of entries between the requested cursor and this cursor that are no longer
+     * in the store (overwritten or cleared before they were read) */
+    public final long numMissed;
+    
+    /** constructor */
+    private Snapshot(final List<LogEntry> entries, final long cursor, final long numMissed) {
+      this.entries = entries;
+      this.cursor = cursor;
+      this.numMissed = numMissed;
+    }
+  }
+  
+  /** ring buffer for the entries of one type (guarded by the LogStore's lock) */
+  private static final class Ring {
+    /** slots */
+    private final LogEntry[] entries;
+    /** index of oldest entry */
+    private int head;
+    /** number of entries */
+    private int size;
+    /** number of entries overwritten so far */
+    private long numOverwritten;
+    
+    /** constructor */
+    private Ring(final int capacity) {
+      entries = new LogEntry[Math.max(1, capacity)];
+    }
+    
+    /** add an entry, overwriting the oldest one if full */
+    private void add(final LogEntry entry) {
+      if (size == entries.length) {
+        entries[head] = entry;
+        head = (head + 1) % entries.length;
+        numOverwritten++;
+      } else {
+        entries[(head + size) % entries.length] = entry;
+        size++;
+      }
+    }
+    
+    /** get the i-th oldest entry */
+    private LogEntry get(final int i) {
+      return entries[(head + i) % entries.length];
+    }
+    
+    /** index of the oldest entry with sequence number >= cursor (size if there is none) */
+    private int indexOf(final long cursor) {
+      int lo = 0;
+      int hi = size;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (get(mid).sequence < cursor) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+    
+    /** remove all entries */
+    private void clear() {
+      for (int i = 0; i < entries.length; i++) {
+        entries[i] = null;
+      }
+      head = 0;
+      size = 0;
+    }
+  }
+}
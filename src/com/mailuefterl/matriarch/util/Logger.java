@@ -26,6 +26,8 @@ package com.mailuefterl.matriarch.util;
  * #L%
  */
 
+import java.util.function.Supplier;
+
 /**
  * Default implementation of a logger, instantiated in each user class.
  */
@@ -39,6 +41,12 @@ public class Logger implements ILogger {
     manager = mgr;
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public boolean isEnabled(final LogType type) {
+    return manager.isEnabled(type);
+  }
+
   /** {@inheritDoc} */
   @Override
   public void error(Object... args) {
@@ -51,18 +59,48 @@ public class Logger implements ILogger {
     manager.log(LogType.LOG_INFO, args);
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public void info(Supplier<?> text) {
+    manager.log(LogType.LOG_INFO, text);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void infof(String format, Object... args) {
+    manager.logFormat(LogType.LOG_INFO, format, args);
+  }
+
   /** {@inheritDoc} */
   @Override
   public void debug(Object... args) {
     manager.log(LogType.LOG_DEBUG, args);
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public void debug(Supplier<?> text) {
+    manager.log(LogType.LOG_DEBUG, text);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void debugf(String format, Object... args) {
+    manager.logFormat(LogType.LOG_DEBUG, format, args);
+  }
+
   /** {@inheritDoc} */
   @Override
   public void io(Object... args) {
     manager.log(LogType.LOG_IO, args);
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public void io(Supplier<?> text) {
+    manager.log(LogType.LOG_IO, text);
+  }
+
   /** {@inheritDoc} */
   @Override
   public void iohex(String prefix, byte[] data) {